@@ -4,17 +4,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-
-import javax.security.auth.login.FailedLoginException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Appender;
 import org.apache.log4j.Level;
@@ -29,16 +41,25 @@ import com.beust.jcommander.ParameterException;
 public class App {
     private final static Logger LOGGER = Logger.getLogger(App.class.getName());
     public static final String CANNOT_CONNECT_TO_INSTANCE = "Cannot connect to instance ";
+    // Shortest wait for the collections of an iteration, so that very short check periods don't carry them all over
+    private static final long MIN_COLLECTION_WAIT = 1000;
     private static int loopCounter;
     private HashMap<String, YamlParser> configs;
     private ArrayList<Instance> instances = new ArrayList<Instance>();
     private LinkedList<Instance> brokenInstances = new LinkedList<Instance>();
+    // Broken instances that lost their connection, their plan can be rebound to a new connection
+    private HashSet<Instance> disconnectedInstances = new HashSet<Instance>();
     private AppConfig appConfig;
+    private ExecutorService collectionExecutor;
+    // Collections that didn't complete within their iteration, reported by the iteration they complete in
+    private HashMap<Instance, Future<MetricBatch>> runningCollections = new HashMap<Instance, Future<MetricBatch>>();
+    private InstanceReconnector reconnector;
 
 
     public App(AppConfig appConfig) {
         this.appConfig = appConfig;
         this.configs = getConfigs(appConfig);
+        this.reconnector = new InstanceReconnector(appConfig);
     }
 
     /**
@@ -125,6 +146,10 @@ public class App {
         return loopCounter;
     }
 
+    ArrayList<Instance> getInstances() {
+        return instances;
+    }
+
     private static void clearInstances(List<Instance> instances) {
         Iterator<Instance> iterator = instances.iterator();
         while (iterator.hasNext()) {
@@ -136,6 +161,10 @@ public class App {
 
     void start() {
         // Main Loop that will periodically collect metrics from the JMX Server
+        // Collections are scheduled at a fixed rate, on wall clock multiples of the check period,
+        // so that the period doesn't drift with the time spent collecting
+        long checkPeriod = appConfig.getCheckPeriod();
+        long nextCollection = System.currentTimeMillis();
         while (true) {
             // Exit on exit file trigger
             if (appConfig.getExitWatcher().shouldExit()){
@@ -144,7 +173,8 @@ public class App {
             }
 
             long start = System.currentTimeMillis();
-            if (instances.size() > 0) {
+            // Broken instances are being reconnected in the background
+            if (instances.size() > 0 || brokenInstances.size() > 0) {
                 doIteration();
             } else {
                 LOGGER.warn("No instance could be initiated. Retrying initialization.");
@@ -152,37 +182,70 @@ public class App {
                 configs = getConfigs(appConfig);
                 init(true);
             }
-            long length = System.currentTimeMillis() - start;
-            LOGGER.debug("Iteration ran in " + length + " ms");
+            long now = System.currentTimeMillis();
+            LOGGER.debug("Iteration ran in " + (now - start) + " ms");
+
+            nextCollection = getNextCollectionTime(nextCollection, now, checkPeriod);
+
             // Sleep until next collection
             try {
-                int loopPeriod = appConfig.getCheckPeriod();
-                LOGGER.debug("Sleeping for " + loopPeriod + " ms.");
-                Thread.sleep(loopPeriod);
+                LOGGER.debug("Sleeping for " + (nextCollection - now) + " ms.");
+                Thread.sleep(nextCollection - now);
             } catch (InterruptedException e) {
                 LOGGER.warn(e.getMessage(), e);
             }
         }
     }
 
+    /**
+     * Compute the time of the next collection, aligned on a wall clock multiple of the check period.
+     * The collections missed while the previous one was running are skipped rather than run back-to-back.
+     *
+     * @param previousCollection    scheduled time of the previous collection
+     * @param now                   current time
+     * @param checkPeriod           check period in ms
+     *
+     * @return                      the time of the next collection, always in the future
+     */
+    static long getNextCollectionTime(long previousCollection, long now, long checkPeriod) {
+        long nextCollection = (previousCollection / checkPeriod + 1) * checkPeriod;
+        if (nextCollection <= now) {
+            long missed = (now - nextCollection) / checkPeriod + 1;
+            LOGGER.warn("Collection took longer than the check period (" + checkPeriod + " ms), skipping " + missed + " collection(s)");
+            nextCollection += missed * checkPeriod;
+        } else if (nextCollection - now > checkPeriod) {
+            // The clock went backward: wait for the next period boundary instead
+            nextCollection = (now / checkPeriod + 1) * checkPeriod;
+        }
+        return nextCollection;
+    }
+
     public void doIteration() {
         loopCounter++;
         Reporter reporter = appConfig.getReporter();
 
-        Iterator<Instance> it = instances.iterator();
-        while (it.hasNext()) {
-            Instance instance = it.next();
-            LinkedList<HashMap<String, Object>> metrics;
+        // Collect all the instances concurrently so a slow instance doesn't hold back the others,
+        // then report them one after the other on this thread so the reporter output doesn't interleave.
+        // The collections are waited for until the end of the check period, whatever they are blocked on
+        long deadline = System.currentTimeMillis() + Math.max(appConfig.getCheckPeriod(), MIN_COLLECTION_WAIT);
+        LinkedHashMap<Instance, Future<MetricBatch>> collections = collectInstances();
+
+        for (Map.Entry<Instance, Future<MetricBatch>> collection : collections.entrySet()) {
+            Instance instance = collection.getKey();
+            MetricBatch metrics;
             String instanceStatus = Status.STATUS_OK;
             String scStatus = Status.STATUS_OK;
             String instanceMessage = null;
             int numberOfMetrics = 0;
 
             try {
-                metrics = instance.getMetrics();
+                metrics = getCollectedMetrics(collection.getValue(), deadline);
                 numberOfMetrics = metrics.size();
 
-                if (numberOfMetrics == 0) {
+                if (numberOfMetrics == 0 && instance.isDiscovering()) {
+                    // The beans matched so far don't have any metric, the next ones may
+                    LOGGER.info("Instance " + instance + " didn't return any metrics yet, its beans are still being discovered");
+                } else if (numberOfMetrics == 0) {
                     instanceMessage = "Instance " + instance + " didn't return any metrics";
                     LOGGER.warn(instanceMessage);
                     instanceStatus = Status.STATUS_ERROR;
@@ -204,11 +267,26 @@ public class App {
                     reporter.sendMetrics(metrics, instance.getName());
 
             } catch (IOException e) {
+                if (e instanceof PartialCollectionException) {
+                    // The connection was lost in the middle of the collection, report what was collected until then
+                    metrics = ((PartialCollectionException) e).getMetrics();
+                    numberOfMetrics = metrics.size();
+                    reporter.sendMetrics(metrics, instance.getName());
+                }
                 instanceMessage = "Unable to refresh bean list for instance " + instance;
                 LOGGER.warn(instanceMessage, e);
                 instanceStatus = Status.STATUS_ERROR;
                 scStatus = Status.STATUS_ERROR;
                 brokenInstances.add(instance);
+                disconnectedInstances.add(instance);
+            } catch (TimeoutException e) {
+                // The collection carries on in the background, it is reported by the iteration it completes in
+                runningCollections.put(instance, collection.getValue());
+                instanceMessage = "Collection of instance " + instance + " didn't complete within the check period ("
+                        + appConfig.getCheckPeriod() + " ms), carrying it over to the next iteration";
+                LOGGER.warn(instanceMessage);
+                instanceStatus = Status.STATUS_WARNING;
+                scStatus = Status.STATUS_WARNING;
             }
 
             this.reportStatus(appConfig, reporter, instance, numberOfMetrics, instanceMessage, instanceStatus);
@@ -216,48 +294,48 @@ public class App {
         }
 
 
-        // Iterate over broken" instances to fix them by resetting them
-        it = brokenInstances.iterator();
+        // Iterate over broken" instances to fix them by resetting them.
+        // The reconnection happens in the background so healthy instances keep being collected meanwhile.
+        Iterator<Instance> it = brokenInstances.iterator();
         while (it.hasNext()) {
             Instance instance = it.next();
+            InstanceReconnector.Reconnection reconnection = reconnector.getReconnection(instance);
 
-            // Clearing rates aggregator so we won't compute wrong rates if we can reconnect
-            reporter.clearRatesAggregator(instance.getName());
+            if (reconnection == null) {
+                LOGGER.warn("Instance " + instance + " didn't return any metrics." +
+                        "Maybe the server got disconnected ? Trying to reconnect.");
 
-            LOGGER.warn("Instance " + instance + " didn't return any metrics." +
-                    "Maybe the server got disconnected ? Trying to reconnect.");
+                // Remove the broken instance from the good instance list so jmxfetch won't try to collect metrics from this broken instance during next collection
+                // Its connection is closed, its plan is kept to be rebound to a new connection
+                instance.disconnect();
+                instances.remove(instance);
+                reconnection = reconnector.reconnect(instance, disconnectedInstances.remove(instance));
+            }
 
-            // Remove the broken instance from the good instance list so jmxfetch won't try to collect metrics from this broken instance during next collection
-            instance.cleanUp();
-            instances.remove(instance);
+            Instance newInstance = reconnection.getReconnectedInstance();
+            if (newInstance != null) {
+                if (!reconnection.areRatesKept()) {
+                    // Clearing the rate samples so we won't compute wrong rates across a restart of the JVM
+                    newInstance.clearRates();
+                }
+                if (newInstance != instance) {
+                    instance.cleanUp();
+                }
 
-            // Resetting the instance
-            Instance newInstance = new Instance(instance, appConfig);
-            try {
-                // Try to reinit the connection and force to renew it
-                LOGGER.info("Trying to reconnect to: " + newInstance);
-                newInstance.init(true);
-                // If we are here, the connection succeeded, the instance is fixed. It can be readded to the good instances list
+                // The connection succeeded, the instance is fixed. It can be readded to the good instances list
+                LOGGER.info("Reconnected to: " + newInstance);
                 instances.add(newInstance);
+                reconnector.forget(instance);
                 it.remove();
-            } catch(Exception e) {
-                String warning = null;
-
-                if(e instanceof IOException ) {
-                    warning = CANNOT_CONNECT_TO_INSTANCE + instance + ". Is a JMX Server running at this address?";
-                    LOGGER.warn(warning);
-                } else if (e instanceof SecurityException) {
-                    warning = CANNOT_CONNECT_TO_INSTANCE + instance + " because of bad credentials. Please check your credentials";
-                    LOGGER.warn(warning);
-                } else if (e instanceof FailedLoginException) {
-                    warning = CANNOT_CONNECT_TO_INSTANCE + instance + " because of bad credentials. Please check your credentials";
-                    LOGGER.warn(warning);
-                } else {
-                    warning = CANNOT_CONNECT_TO_INSTANCE + instance + " for an unknown reason." + e.getMessage();
-                    LOGGER.fatal(warning, e);
+            } else if (!collections.containsKey(instance)) {
+                // Instances that broke during this iteration have already been reported
+                String warning = reconnection.getLastError();
+                if (warning == null) {
+                    warning = "Trying to reconnect to instance " + instance;
                 }
-
-                this.reportStatus(appConfig, reporter, instance, 0, warning, Status.STATUS_ERROR);
+                appConfig.getStatus().addBrokenInstanceStats(instance.getCheckName(), instance.getName(),
+                        reporter.getServiceCheckCount(instance.getCheckName()), warning, Status.STATUS_ERROR,
+                        reconnection.getAttempts(), reconnection.getLastError(), reconnection.getNextRetryTime());
                 this.sendServiceCheck(reporter, instance, warning, Status.STATUS_ERROR);
             }
         }
@@ -269,6 +347,96 @@ public class App {
         }
     }
 
+    private LinkedHashMap<Instance, Future<MetricBatch>> collectInstances() {
+        ExecutorService executor = getCollectionExecutor();
+        LinkedHashMap<Instance, Future<MetricBatch>> collections =
+                new LinkedHashMap<Instance, Future<MetricBatch>>();
+
+        for (final Instance instance : instances) {
+            // An instance whose previous collection is still running is not collected again meanwhile
+            Future<MetricBatch> collection = runningCollections.remove(instance);
+            if (collection == null) {
+                collection = executor.submit(new Callable<MetricBatch>() {
+                    public MetricBatch call() throws IOException {
+                        return instance.getMetrics();
+                    }
+                });
+            }
+            collections.put(instance, collection);
+        }
+        return collections;
+    }
+
+    /**
+     * Wait for the collection of an instance until the deadline and return its metrics, rethrowing what
+     * the collection threw.
+     *
+     * @param deadline      time (in ms) after which the collection is left running
+     * @throws TimeoutException     if the collection didn't complete before the deadline
+     */
+    private static MetricBatch getCollectedMetrics(Future<MetricBatch> collection, long deadline)
+            throws IOException, TimeoutException {
+        try {
+            return collection.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the instance collection");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private ExecutorService getCollectionExecutor() {
+        if (collectionExecutor == null) {
+            if (appConfig.isVirtualThreads()) {
+                collectionExecutor = newVirtualThreadExecutor();
+            }
+            if (collectionExecutor == null) {
+                int threads = appConfig.getCollectionThreads();
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new CollectorThreadFactory());
+                executor.allowCoreThreadTimeOut(true);
+                collectionExecutor = executor;
+            }
+        }
+        return collectionExecutor;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() is looked up by reflection as it only exists on Java 21+.
+     *
+     * @return          a virtual thread executor, or null if the running JVM doesn't support them
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) factory.invoke(null);
+            LOGGER.info("Collecting instances on virtual threads");
+            return executor;
+        } catch (Exception e) {
+            LOGGER.warn("Virtual threads are not supported by this JVM (Java 21+ required). Using a thread pool instead.");
+            return null;
+        }
+    }
+
+    private static class CollectorThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jmxfetch-collector-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     private HashMap<String, YamlParser> getConfigs(AppConfig config) {
         HashMap<String, YamlParser> configs = new HashMap<String, YamlParser>();
         YamlParser fileConfig;
@@ -320,6 +488,12 @@ public class App {
     public void init(boolean forceNewConnection) {
         clearInstances(instances);
         clearInstances(brokenInstances);
+        disconnectedInstances.clear();
+        reconnector.cancelAll();
+        for (Future<MetricBatch> collection : runningCollections.values()) {
+            collection.cancel(true);
+        }
+        runningCollections.clear();
 
         Reporter reporter = appConfig.getReporter();
 
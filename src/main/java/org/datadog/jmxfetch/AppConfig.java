@@ -67,6 +67,17 @@ class AppConfig {
             required = false)
     private int checkPeriod = 15000;
 
+    @Parameter(names = {"--collection_threads", "-t"},
+            description = "Maximum number of instances collected concurrently",
+            validateWith = PositiveIntegerValidator.class,
+            required = false)
+    private int collectionThreads = 8;
+
+    @Parameter(names = {"--virtual_threads"},
+            description = "Collect each instance on its own virtual thread (Java 21+, falls back to the thread pool otherwise)",
+            required = false)
+    private boolean virtualThreads;
+
     @Parameter(names = {"--status_location", "-s"},
             description = "Absolute path of the status file. (default to null = no status file written)",
             converter = StatusConverter.class,
@@ -109,6 +120,14 @@ class AppConfig {
         return checkPeriod;
     }
 
+    public int getCollectionThreads() {
+        return collectionThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
     public Reporter getReporter() {
         return reporter;
     }
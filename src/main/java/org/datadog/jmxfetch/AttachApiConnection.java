@@ -18,6 +18,7 @@ public class AttachApiConnection extends Connection {
         processRegex = (String) connectionParams.get("process_name_regex");
         this.env = new HashMap<String, Object>();
         this.address = getAddress(connectionParams);
+        setCallTimeout(connectionParams);
         createConnection();
       }
 
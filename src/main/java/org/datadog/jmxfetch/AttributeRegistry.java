@@ -0,0 +1,274 @@
+package org.datadog.jmxfetch;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The metrics of the attributes collected by an instance, stored column by column instead of as an object
+ * graph per attribute, so that the heap used by a large collection plan stays small.
+ *
+ * Every metric has a slot, its index in the columns. Aliases and metric types are ids in a table of interned
+ * strings, tags are the id of a tag list shared by all the metrics with the same tags, and the latest value of
+ * each metric is kept as a primitive, as well as the last reported sample of the metrics reported as rates.
+ * Strings and tag lists are reference counted, so that the ones of the beans that are gone are freed along with
+ * their slots.
+ *
+ * The registry is not thread safe: it is used by the thread collecting its instance, then by the one reporting
+ * the collected metrics, never at the same time.
+ */
+class AttributeRegistry {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long NO_SAMPLE = Long.MIN_VALUE;
+
+    private final Table<String> strings = new Table<String>();
+    private final Table<List<String>> tagLists = new Table<List<String>>();
+    // The tags of each tag list, as interned strings, handed out to all the metrics of the tag list
+    private String[][] tagArrays = new String[INITIAL_CAPACITY][];
+
+    // Metric columns, indexed by slot
+    private int[] aliases = new int[INITIAL_CAPACITY];
+    private int[] metricTypes = new int[INITIAL_CAPACITY];
+    private int[] tags = new int[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private long[] valueTimes = new long[INITIAL_CAPACITY];
+    // Last sample of the metrics reported as rates, NO_SAMPLE until they are first reported
+    private double[] rateValues = new double[INITIAL_CAPACITY];
+    private long[] rateTimes = new long[INITIAL_CAPACITY];
+    // Number of metrics of the complex attribute of the metric, 0 for the metric of a simple attribute
+    private int[] complexSizes = new int[INITIAL_CAPACITY];
+    // What the reporter derives from the metric, computed on its first report
+    private Object[] outputs = new Object[INITIAL_CAPACITY];
+    private int slotCount;
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeSlotCount;
+
+    /**
+     * Reference counted values, by id. The ids of the values that are freed are reused.
+     */
+    private static class Table<T> {
+        private final HashMap<T, Integer> ids = new HashMap<T, Integer>();
+        private Object[] values = new Object[INITIAL_CAPACITY];
+        private int[] references = new int[INITIAL_CAPACITY];
+        private int count;
+        private int[] freeIds = new int[INITIAL_CAPACITY];
+        private int freeIdCount;
+
+        /**
+         * @return      the id of the value, whose reference count is incremented
+         */
+        private int acquire(T value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                if (freeIdCount > 0) {
+                    id = freeIds[--freeIdCount];
+                } else {
+                    if (count == values.length) {
+                        values = Arrays.copyOf(values, count * 2);
+                        references = Arrays.copyOf(references, count * 2);
+                    }
+                    id = count++;
+                }
+                ids.put(value, id);
+                values[id] = value;
+            }
+            references[id]++;
+            return id;
+        }
+
+        /**
+         * @return      true if the value isn't referenced anymore, and has been freed
+         */
+        private boolean release(int id) {
+            if (--references[id] > 0) {
+                return false;
+            }
+            ids.remove(values[id]);
+            values[id] = null;
+            if (freeIdCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+            }
+            freeIds[freeIdCount++] = id;
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T get(int id) {
+            return (T) values[id];
+        }
+
+        private int size() {
+            return ids.size();
+        }
+    }
+
+    /**
+     * Allocate the slot of the metric of a simple attribute.
+     *
+     * @return      the slot, to be released once the metric is not collected anymore
+     */
+    int allocate(String alias, String metricType, String[] metricTags) {
+        return allocate(alias, metricType, metricTags, 0);
+    }
+
+    /**
+     * Allocate the slot of a metric.
+     *
+     * @param complexSize   the number of metrics of the complex attribute of the metric, 0 for a simple attribute
+     *
+     * @return              the slot, to be released once the metric is not collected anymore
+     */
+    int allocate(String alias, String metricType, String[] metricTags, int complexSize) {
+        int slot;
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        } else {
+            if (slotCount == aliases.length) {
+                int capacity = slotCount * 2;
+                aliases = Arrays.copyOf(aliases, capacity);
+                metricTypes = Arrays.copyOf(metricTypes, capacity);
+                tags = Arrays.copyOf(tags, capacity);
+                values = Arrays.copyOf(values, capacity);
+                valueTimes = Arrays.copyOf(valueTimes, capacity);
+                rateValues = Arrays.copyOf(rateValues, capacity);
+                rateTimes = Arrays.copyOf(rateTimes, capacity);
+                complexSizes = Arrays.copyOf(complexSizes, capacity);
+                outputs = Arrays.copyOf(outputs, capacity);
+            }
+            slot = slotCount++;
+        }
+
+        aliases[slot] = strings.acquire(alias);
+        metricTypes[slot] = strings.acquire(metricType);
+        tags[slot] = acquireTags(metricTags);
+        values[slot] = Double.NaN;
+        valueTimes[slot] = 0;
+        rateTimes[slot] = NO_SAMPLE;
+        complexSizes[slot] = complexSize;
+        return slot;
+    }
+
+    void release(int slot) {
+        strings.release(aliases[slot]);
+        strings.release(metricTypes[slot]);
+        int tagList = tags[slot];
+        if (tagLists.release(tagList)) {
+            for (String tag : tagArrays[tagList]) {
+                strings.release(strings.ids.get(tag));
+            }
+            tagArrays[tagList] = null;
+        }
+        outputs[slot] = null;
+
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    private int acquireTags(String[] metricTags) {
+        List<String> tagList = Arrays.asList(metricTags);
+        Integer id = tagLists.ids.get(tagList);
+        if (id != null) {
+            tagLists.references[id]++;
+            return id;
+        }
+
+        // A new tag list: its tags are interned, and the list is keyed by the interned tags
+        String[] tagArray = new String[metricTags.length];
+        for (int i = 0; i < metricTags.length; i++) {
+            tagArray[i] = strings.get(strings.acquire(metricTags[i]));
+        }
+        id = tagLists.acquire(Arrays.asList(tagArray));
+        if (id >= tagArrays.length) {
+            tagArrays = Arrays.copyOf(tagArrays, Math.max(id + 1, tagArrays.length * 2));
+        }
+        tagArrays[id] = tagArray;
+        return id;
+    }
+
+    String getAlias(int slot) {
+        return strings.get(aliases[slot]);
+    }
+
+    String getMetricType(int slot) {
+        return strings.get(metricTypes[slot]);
+    }
+
+    /**
+     * @return      the tags of the metric, shared with the metrics having the same tags: not to be modified
+     */
+    String[] getTags(int slot) {
+        return tagArrays[tags[slot]];
+    }
+
+    int getComplexSize(int slot) {
+        return complexSizes[slot];
+    }
+
+    Object getOutput(int slot) {
+        return outputs[slot];
+    }
+
+    void setOutput(int slot, Object output) {
+        outputs[slot] = output;
+    }
+
+    void setValue(int slot, double value, long time) {
+        values[slot] = value;
+        valueTimes[slot] = time;
+    }
+
+    /**
+     * @return      the latest value of the metric, NaN if it has not been collected yet
+     */
+    double getValue(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * @return      the time, in milliseconds, of the latest value of the metric
+     */
+    long getValueTime(int slot) {
+        return valueTimes[slot];
+    }
+
+    /**
+     * Compute the rate of a metric since its previous sample, and keep the sample for the next computation.
+     *
+     * @param time  the time of the sample, in milliseconds
+     *
+     * @return      the rate per second, NaN for the first sample of the metric
+     */
+    double updateRate(int slot, double value, long time) {
+        long previousTime = rateTimes[slot];
+        double previousValue = rateValues[slot];
+        rateValues[slot] = value;
+        rateTimes[slot] = time;
+        if (previousTime == NO_SAMPLE) {
+            return Double.NaN;
+        }
+        return 1000 * (value - previousValue) / (time - previousTime);
+    }
+
+    /**
+     * Forget the samples of all the metrics, so that the next rates are not computed across a restart of the JVM.
+     */
+    void clearRates() {
+        Arrays.fill(rateTimes, 0, slotCount, NO_SAMPLE);
+    }
+
+    /**
+     * @return      the number of slots in use
+     */
+    int size() {
+        return slotCount - freeSlotCount;
+    }
+
+    /**
+     * @return      the number of distinct strings and tag lists in use
+     */
+    int getInternedCount() {
+        return strings.size() + tagLists.size();
+    }
+}
@@ -0,0 +1,150 @@
+package org.datadog.jmxfetch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+/**
+ * What an instance knows of a bean before reading it: its domain, its parameters, the default tags of its
+ * metrics and the prefixes of the ids of its charts. It is built once per bean and shared by all the attributes
+ * of the bean, which used to parse the bean name and build the same tags one by one.
+ *
+ * Tags are interned, so that the tags common to many beans (instance, domain, type...) are a single string
+ * across all the instances.
+ */
+class BeanDescriptor {
+    private final ObjectName beanName;
+    private final String beanStringName;
+    private final String domain;
+    private final HashMap<String, String> parameters;
+    private final String[] tags;
+    // Tags of the metrics renamed by the Cassandra aliasing, null if the bean is not aliased
+    private final String[] cassandraTags;
+    private final String chartIdPrefix;
+    private final String chartNamePrefix;
+    private final String chartTitlePrefix;
+    private final String chartFamily;
+
+    BeanDescriptor(ObjectName beanName, String instanceName, Map<String, String> instanceTags, boolean cassandraAliasing) {
+        this.beanName = beanName;
+        this.beanStringName = beanName.toString();
+        this.domain = beanName.getDomain().intern();
+        this.parameters = new HashMap<String, String>(beanName.getKeyPropertyList());
+
+        this.tags = buildTags(instanceName, instanceTags, false);
+        if (cassandraAliasing && domain.equals(JMXAttribute.CASSANDRA_DOMAIN)) {
+            this.cassandraTags = buildTags(instanceName, instanceTags, true);
+        } else {
+            this.cassandraTags = null;
+        }
+
+        String type = getChartProperty("type");
+        String scope = getChartProperty("scope");
+        String index = getChartProperty("index");
+        String name = getChartProperty("name");
+        String properties = type + scope + index + name;
+        this.chartFamily = domain + type + scope;
+        this.chartTitlePrefix = domain + index + name;
+        this.chartIdPrefix = chartFamily + "-" + chartTitlePrefix;
+        this.chartNamePrefix = properties.isEmpty() ? "" : properties.substring(1);
+    }
+
+    private String getChartProperty(String key) {
+        String value = parameters.get(key);
+        return value != null ? "." + value.toLowerCase() : "";
+    }
+
+    private String[] buildTags(String instanceName, Map<String, String> instanceTags, boolean cassandra) {
+        ArrayList<String> beanTags = new ArrayList<String>();
+        beanTags.add("instance:" + instanceName);
+        beanTags.add("jmx_domain:" + domain);
+
+        for (Map.Entry<String, String> param : parameters.entrySet()) {
+            if (!cassandra) {
+                beanTags.add(param.getKey() + ":" + param.getValue());
+            } else if (param.getKey().equals("name")) {
+                // This is already in the alias
+                continue;
+            } else if (param.getKey().equals("scope")) {
+                beanTags.add(parameters.get("type") + ":" + param.getValue());
+            } else {
+                beanTags.add(param.getKey() + ":" + param.getValue());
+            }
+        }
+
+        if (instanceTags != null) {
+            for (Map.Entry<String, String> tag : instanceTags.entrySet()) {
+                beanTags.add(tag.getKey() + ":" + tag.getValue());
+            }
+        }
+
+        String[] tagArray = new String[beanTags.size()];
+        for (int i = 0; i < tagArray.length; i++) {
+            tagArray[i] = renameConflictingParameter(beanTags.get(i)).intern();
+        }
+        return tagArray;
+    }
+
+    private static String renameConflictingParameter(String tag) {
+        // the 'host' parameter is renamed to 'bean_host'
+        if (tag.startsWith("host:")) {
+            return "bean_host:" + tag.substring("host:".length());
+        } else if (tag.endsWith(":")) {
+            // If the parameter's value is empty, remove the colon in the tag
+            return tag.substring(0, tag.length() - 1);
+        }
+        return tag;
+    }
+
+    ObjectName getBeanName() {
+        return beanName;
+    }
+
+    String getBeanStringName() {
+        return beanStringName;
+    }
+
+    String getDomain() {
+        return domain;
+    }
+
+    /**
+     * @return      the key properties of the bean name: not to be modified
+     */
+    HashMap<String, String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return      the default tags of the metrics of the bean, renamed by the Cassandra aliasing if asked and
+     *              if the bean is aliased: not to be modified
+     */
+    String[] getTags(boolean cassandraAliasing) {
+        return cassandraAliasing && cassandraTags != null ? cassandraTags : tags;
+    }
+
+    /**
+     * @return      true if the metrics of the bean are renamed by the Cassandra aliasing
+     */
+    boolean isCassandraAliased() {
+        return cassandraTags != null;
+    }
+
+    String getChartIdPrefix() {
+        return chartIdPrefix;
+    }
+
+    String getChartNamePrefix() {
+        return chartNamePrefix;
+    }
+
+    String getChartTitlePrefix() {
+        return chartTitlePrefix;
+    }
+
+    String getChartFamily() {
+        return chartFamily;
+    }
+}
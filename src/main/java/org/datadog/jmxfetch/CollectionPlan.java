@@ -0,0 +1,155 @@
+package org.datadog.jmxfetch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The beans of an instance and the attributes matched on them, persisted so that a restarted agent can
+ * start collecting right away instead of discovering the beans again.
+ *
+ * The plan is a text file, one line per bean and per attribute. Aliases, tags and chart ids are not stored,
+ * they are derived again from the attributes and the index of their matching configuration. A plan is only
+ * valid for the configuration it was built with, and as long as the number of beans of the server is unchanged.
+ */
+class CollectionPlan {
+    private static final String HEADER = "jmxfetch-plan 1";
+    private static final String ENCODING = "UTF-8";
+    private static final String SEPARATOR = "\t";
+
+    private final String configurationHash;
+    private final int beanCount;
+    // Bean name -> class name, null if unknown
+    private final LinkedHashMap<ObjectName, String> beans;
+    private final ArrayList<Entry> attributes;
+
+    /**
+     * An attribute of the plan.
+     */
+    static class Entry {
+        private final ObjectName beanName;
+        private final String attributeName;
+        private final String attributeType;
+        private final int configurationIndex;
+
+        Entry(ObjectName beanName, String attributeName, String attributeType, int configurationIndex) {
+            this.beanName = beanName;
+            this.attributeName = attributeName;
+            this.attributeType = attributeType;
+            this.configurationIndex = configurationIndex;
+        }
+
+        ObjectName getBeanName() {
+            return beanName;
+        }
+
+        String getAttributeName() {
+            return attributeName;
+        }
+
+        String getAttributeType() {
+            return attributeType;
+        }
+
+        int getConfigurationIndex() {
+            return configurationIndex;
+        }
+    }
+
+    CollectionPlan(String configurationHash, int beanCount, Map<ObjectName, String> beans, List<Entry> attributes) {
+        this.configurationHash = configurationHash;
+        this.beanCount = beanCount;
+        this.beans = new LinkedHashMap<ObjectName, String>(beans);
+        this.attributes = new ArrayList<Entry>(attributes);
+    }
+
+    String getConfigurationHash() {
+        return configurationHash;
+    }
+
+    int getBeanCount() {
+        return beanCount;
+    }
+
+    LinkedHashMap<ObjectName, String> getBeans() {
+        return beans;
+    }
+
+    ArrayList<Entry> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Write the plan to a temporary file first, then move it in place so that a plan is never read half written.
+     */
+    void save(File file) throws IOException {
+        StringBuilder content = new StringBuilder();
+        content.append(HEADER).append('\n');
+        content.append("configuration").append(SEPARATOR).append(configurationHash).append('\n');
+        content.append("beans").append(SEPARATOR).append(beanCount).append('\n');
+        for (Map.Entry<ObjectName, String> bean : beans.entrySet()) {
+            content.append('B').append(SEPARATOR).append(bean.getKey())
+                    .append(SEPARATOR).append(bean.getValue() != null ? bean.getValue() : "").append('\n');
+        }
+        for (Entry attribute : attributes) {
+            content.append('A').append(SEPARATOR).append(attribute.beanName)
+                    .append(SEPARATOR).append(attribute.attributeName)
+                    .append(SEPARATOR).append(attribute.attributeType)
+                    .append(SEPARATOR).append(attribute.configurationIndex).append('\n');
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileUtils.writeStringToFile(tmpFile, content.toString(), ENCODING);
+        if (!tmpFile.renameTo(file)) {
+            FileUtils.deleteQuietly(tmpFile);
+            throw new IOException("Cannot move " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * @throws IOException      if the file cannot be read or is not a valid plan
+     */
+    static CollectionPlan load(File file) throws IOException {
+        List<String> lines = FileUtils.readLines(file, ENCODING);
+        if (lines.size() < 3 || !HEADER.equals(lines.get(0))) {
+            throw new IOException("Unknown plan format in " + file);
+        }
+
+        try {
+            String configurationHash = getField(lines.get(1), "configuration");
+            int beanCount = Integer.parseInt(getField(lines.get(2), "beans"));
+            LinkedHashMap<ObjectName, String> beans = new LinkedHashMap<ObjectName, String>();
+            ArrayList<Entry> attributes = new ArrayList<Entry>();
+
+            for (String line : lines.subList(3, lines.size())) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length == 3 && "B".equals(fields[0])) {
+                    beans.put(new ObjectName(fields[1]), fields[2].isEmpty() ? null : fields[2]);
+                } else if (fields.length == 5 && "A".equals(fields[0])) {
+                    attributes.add(new Entry(new ObjectName(fields[1]), fields[2], fields[3], Integer.parseInt(fields[4])));
+                } else if (!line.isEmpty()) {
+                    throw new IOException("Invalid plan line: " + line);
+                }
+            }
+            return new CollectionPlan(configurationHash, beanCount, beans, attributes);
+        } catch (MalformedObjectNameException | NumberFormatException e) {
+            throw new IOException("Invalid plan " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String getField(String line, String name) throws IOException {
+        String[] fields = line.split(SEPARATOR, -1);
+        if (fields.length != 2 || !name.equals(fields[0])) {
+            throw new IOException("Invalid plan line: " + line);
+        }
+        return fields[1];
+    }
+}
@@ -2,16 +2,32 @@ package org.datadog.jmxfetch;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+
 public class Configuration {
 
+    // Rough cost model used to plan the bean scopes: a domain is assumed to hold ASSUMED_DOMAIN_BEANS beans,
+    // each bean parameter constrained by a scope keeps KEY_SELECTIVITY of them, and a query costs as much as
+    // transferring QUERY_COST beans
+    private static final double ASSUMED_DOMAIN_BEANS = 10000;
+    private static final double KEY_SELECTIVITY = 0.05;
+    private static final double QUERY_COST = 10;
+    private static final int MAX_SCOPES_PER_FILTER = 32;
+
     private LinkedHashMap<String, Object> conf;
     private Filter include;
     private Filter exclude;
@@ -38,6 +54,10 @@ public class Configuration {
         return exclude;
     }
 
+    public int getPriority() {
+        return include.getPriority();
+    }
+
     public String toString() {
         return "include: " + this.include + " - exclude: " + this.exclude;
     }
@@ -85,11 +105,14 @@ public class Configuration {
                 ArrayList<String> beanNames = filter.getBeanNames();
 
                 for (String beanName : beanNames) {
-                    String[] splitBeanName = beanName.split(":");
-                    String domain = splitBeanName[0];
-                    String rawBeanParameters = splitBeanName[1];
-                    HashMap<String, String> beanParametersHash = JMXAttribute.getBeanParametersHash(rawBeanParameters);
-                    beanParametersHash.put("domain", domain);
+                    ObjectName name;
+                    try {
+                        name = new ObjectName(beanName);
+                    } catch (MalformedObjectNameException e) {
+                        throw new IllegalArgumentException("Invalid bean name: " + beanName, e);
+                    }
+                    HashMap<String, Object> beanParametersHash = new HashMap<String, Object>(name.getKeyPropertyList());
+                    beanParametersHash.put("domain", name.getDomain());
                     filters.add(new Filter(beanParametersHash));
                 }
             } else {
@@ -241,4 +264,233 @@ public class Configuration {
         return result;
     }
 
+    /**
+     * Plan the bean scopes to query: for each domain, pick among the greatest common scope, one scope per value
+     * of the first bean parameter of each filter (e.g. one per `type`), and the narrowest scopes of each filter,
+     * the set of scopes with the lowest expected cost.
+     *
+     * @param configurationList         the configuration list to process
+     *
+     * @return                          bean pattern strings, the beans matching the configuration match one of them
+     */
+    public static LinkedList<String> getBeanScopes(LinkedList<Configuration> configurationList){
+        LinkedList<Configuration> includeConfigList = getIncludeConfigurationList(configurationList);
+        HashMap<String, LinkedList<Filter>> includeFiltersByDomain = getIncludeFiltersByDomain(includeConfigList);
+        HashMap<String, Set<String>> parametersIntersectionByDomain = getCommonBeanKeysByDomain(includeFiltersByDomain);
+        HashMap<String, LinkedHashMap<String, String>> commonBeanScopeByDomain = getCommonScopeByDomain(parametersIntersectionByDomain, includeFiltersByDomain);
+
+        LinkedList<String> result = new LinkedList<String>();
+
+        for (Entry<String, LinkedList<Filter>> filtersEntry : includeFiltersByDomain.entrySet()) {
+            String domain = filtersEntry.getKey();
+
+            List<LinkedHashMap<String, String>> bestScopes = new ArrayList<LinkedHashMap<String, String>>();
+            bestScopes.add(commonBeanScopeByDomain.get(domain));
+            double bestCost = getScopesCost(bestScopes);
+
+            for (int maxKeys : new int[]{1, Integer.MAX_VALUE}) {
+                List<LinkedHashMap<String, String>> scopes = getFilterScopes(filtersEntry.getValue(), maxKeys);
+                double cost = getScopesCost(scopes);
+                if (cost < bestCost) {
+                    bestScopes = scopes;
+                    bestCost = cost;
+                }
+            }
+
+            for (LinkedHashMap<String, String> beanScope : bestScopes) {
+                result.add(beanScopeToString(domain, beanScope));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Expected cost of querying a set of scopes.
+     */
+    private static double getScopesCost(List<LinkedHashMap<String, String>> scopes) {
+        double cost = 0;
+        for (LinkedHashMap<String, String> scope : scopes) {
+            cost += ASSUMED_DOMAIN_BEANS * Math.pow(KEY_SELECTIVITY, scope.size()) + QUERY_COST;
+        }
+        return cost;
+    }
+
+    /**
+     * Build the narrowest scopes of each filter: one scope per combination of the values of its bean parameters,
+     * using at most maxKeys parameters. Scopes already covered by a broader scope are dropped.
+     */
+    private static List<LinkedHashMap<String, String>> getFilterScopes(LinkedList<Filter> filters, int maxKeys) {
+        List<LinkedHashMap<String, String>> scopes = new ArrayList<LinkedHashMap<String, String>>();
+
+        for (Filter filter : filters) {
+            LinkedList<String> keys = new LinkedList<String>();
+            for (String key : filter.getBeanParameterKeys()) {
+                if (keys.size() < maxKeys && isScopeable(filter.getParameterValues(key))) {
+                    keys.add(key);
+                }
+            }
+
+            // Don't let the combinations explode, use fewer parameters instead
+            List<LinkedHashMap<String, String>> filterScopes = getScopeCombinations(filter, keys);
+            while (filterScopes.size() > MAX_SCOPES_PER_FILTER) {
+                keys.removeLast();
+                filterScopes = getScopeCombinations(filter, keys);
+            }
+
+            for (LinkedHashMap<String, String> scope : filterScopes) {
+                if (!scopes.contains(scope)) {
+                    scopes.add(scope);
+                }
+            }
+        }
+
+        // Drop the scopes covered by a broader one
+        List<LinkedHashMap<String, String>> result = new ArrayList<LinkedHashMap<String, String>>();
+        for (LinkedHashMap<String, String> scope : scopes) {
+            boolean covered = false;
+            for (LinkedHashMap<String, String> other : scopes) {
+                if (other != scope && other.size() < scope.size() && scope.entrySet().containsAll(other.entrySet())) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(scope);
+            }
+        }
+        return result;
+    }
+
+    private static List<LinkedHashMap<String, String>> getScopeCombinations(Filter filter, List<String> keys) {
+        List<LinkedHashMap<String, String>> combinations = new ArrayList<LinkedHashMap<String, String>>();
+        combinations.add(new LinkedHashMap<String, String>());
+
+        for (String key : keys) {
+            List<LinkedHashMap<String, String>> extended = new ArrayList<LinkedHashMap<String, String>>();
+            for (LinkedHashMap<String, String> combination : combinations) {
+                for (String value : new LinkedHashSet<String>(filter.getParameterValues(key))) {
+                    LinkedHashMap<String, String> scope = new LinkedHashMap<String, String>(combination);
+                    scope.put(key, value);
+                    extended.add(scope);
+                }
+            }
+            combinations = extended;
+        }
+        return combinations;
+    }
+
+    /**
+     * Values with characters that have a meaning in object name patterns can't be used in a scope.
+     */
+    private static boolean isScopeable(List<String> values) {
+        for (String value : values) {
+            if (value == null || value.isEmpty() || value.matches(".*[,=:\"*?\\n].*")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build the query evaluated by the MBean server on the beans of the scopes, so that the beans excluded by
+     * the configuration, or not included by any of it, aren't sent over the wire.
+     *
+     * The query accepts a superset of the matching beans: the constructs that cannot be expressed with object name
+     * patterns (bean regexes, domain regexes, excluded bean names) are left to the matching on the agent side.
+     *
+     * @param configurationList         the configuration list to process
+     *
+     * @return                          the query, or null if it wouldn't filter anything out
+     */
+    public static QueryExp getBeanQuery(LinkedList<Configuration> configurationList) {
+        QueryExp query = null;
+        for (Configuration conf : configurationList) {
+            QueryExp confQuery;
+            try {
+                confQuery = conf.getBeanQuery();
+            } catch (MalformedObjectNameException e) {
+                confQuery = null;
+            }
+            if (confQuery == null) {
+                // This configuration may match any bean
+                return null;
+            }
+            query = (query == null) ? confQuery : Query.or(query, confQuery);
+        }
+        return query;
+    }
+
+    /**
+     * @return      the query matching the beans included and not excluded by this configuration, null for any bean
+     */
+    private QueryExp getBeanQuery() throws MalformedObjectNameException {
+        QueryExp include = getIncludeQuery();
+        QueryExp exclude = getExcludeQuery();
+
+        if (exclude == null) {
+            return include;
+        }
+        QueryExp notExcluded = Query.not(exclude);
+        return (include == null) ? notExcluded : Query.and(include, notExcluded);
+    }
+
+    private QueryExp getIncludeQuery() throws MalformedObjectNameException {
+        String domain = include.getDomain();
+        QueryExp query = null;
+
+        if (!include.isEmptyBeanName()) {
+            QueryExp beanNames = null;
+            for (String beanName : include.getBeanNames()) {
+                ObjectName name = new ObjectName(beanName);
+                beanNames = (beanNames == null) ? name : Query.or(beanNames, name);
+            }
+            query = beanNames;
+        }
+
+        for (String key : include.getBeanParameterKeys()) {
+            QueryExp values = getParameterQuery(domain, key, include.getParameterValues(key));
+            if (values != null) {
+                query = (query == null) ? values : Query.and(query, values);
+            }
+        }
+
+        if (query == null && domain != null) {
+            query = new ObjectName(domain + ":*");
+        }
+        return query;
+    }
+
+    private QueryExp getExcludeQuery() throws MalformedObjectNameException {
+        QueryExp query = null;
+
+        if (exclude.getDomain() != null) {
+            query = new ObjectName(exclude.getDomain() + ":*");
+        }
+
+        for (String key : exclude.getBeanParameterKeys()) {
+            QueryExp values = getParameterQuery(null, key, exclude.getParameterValues(key));
+            if (values != null) {
+                query = (query == null) ? values : Query.or(query, values);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @return      the query matching the beans of the domain with one of the values for the bean parameter,
+     *              or null if some values cannot be expressed in an object name pattern
+     */
+    private static QueryExp getParameterQuery(String domain, String key, List<String> values) throws MalformedObjectNameException {
+        if (!isScopeable(values) || !isScopeable(Collections.singletonList(key))) {
+            return null;
+        }
+
+        QueryExp query = null;
+        for (String value : new LinkedHashSet<String>(values)) {
+            ObjectName pattern = new ObjectName(((domain != null) ? domain : "*") + ":" + key + "=" + value + ",*");
+            query = (query == null) ? pattern : Query.or(query, pattern);
+        }
+        return query;
+    }
 }
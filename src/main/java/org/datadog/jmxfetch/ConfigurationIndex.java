@@ -0,0 +1,111 @@
+package org.datadog.jmxfetch;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the configurations of an instance, compiled once, to find the configurations that may match a bean
+ * without trying every one of them.
+ *
+ * Configurations are indexed by the domain of their include filter, then by the values of their first
+ * bean parameter (usually `type`). The candidates found are then fully matched, in the configuration order,
+ * so that the first matching configuration still wins.
+ */
+class ConfigurationIndex {
+    private final ArrayList<Configuration> configurations;
+    private final HashMap<String, Bucket> bucketsByDomain = new HashMap<String, Bucket>();
+    // Configurations with no domain, or a domain regex
+    private final Bucket anyDomainBucket = new Bucket();
+
+    /**
+     * Configurations of a domain.
+     */
+    private static class Bucket {
+        // Configurations with no bean parameter
+        private final ArrayList<Integer> unkeyed = new ArrayList<Integer>();
+        // Bean parameter -> parameter value -> configurations
+        private final HashMap<String, HashMap<String, ArrayList<Integer>>> byParameter = new HashMap<String, HashMap<String, ArrayList<Integer>>>();
+
+        private void add(int index, Filter include) {
+            if (include.getBeanParameterKeys().isEmpty()) {
+                unkeyed.add(index);
+                return;
+            }
+
+            String parameter = include.getBeanParameterKeys().get(0);
+            HashMap<String, ArrayList<Integer>> byValue = byParameter.get(parameter);
+            if (byValue == null) {
+                byValue = new HashMap<String, ArrayList<Integer>>();
+                byParameter.put(parameter, byValue);
+            }
+            for (String value : include.getParameterValueSet(parameter)) {
+                ArrayList<Integer> indexes = byValue.get(value);
+                if (indexes == null) {
+                    indexes = new ArrayList<Integer>();
+                    byValue.put(value, indexes);
+                }
+                indexes.add(index);
+            }
+        }
+
+        private void collect(Map<String, String> beanParameters, BitSet candidates) {
+            for (Integer index : unkeyed) {
+                candidates.set(index);
+            }
+            for (Map.Entry<String, HashMap<String, ArrayList<Integer>>> parameter : byParameter.entrySet()) {
+                String value = beanParameters.get(parameter.getKey());
+                if (value == null) {
+                    continue;
+                }
+                ArrayList<Integer> indexes = parameter.getValue().get(value);
+                if (indexes != null) {
+                    for (Integer index : indexes) {
+                        candidates.set(index);
+                    }
+                }
+            }
+        }
+    }
+
+    ConfigurationIndex(List<Configuration> configurations) {
+        this.configurations = new ArrayList<Configuration>(configurations);
+        for (int i = 0; i < this.configurations.size(); i++) {
+            Filter include = this.configurations.get(i).getInclude();
+            String domain = include.getDomain();
+            Bucket bucket = anyDomainBucket;
+            if (domain != null) {
+                bucket = bucketsByDomain.get(domain);
+                if (bucket == null) {
+                    bucket = new Bucket();
+                    bucketsByDomain.put(domain, bucket);
+                }
+            }
+            bucket.add(i, include);
+        }
+    }
+
+    /**
+     * @return      the configurations whose bean filters match the bean, in the configuration order
+     */
+    LinkedList<Configuration> getBeanConfigurations(String domain, String beanStringName, Map<String, String> beanParameters) {
+        BitSet candidates = new BitSet(configurations.size());
+        Bucket bucket = bucketsByDomain.get(domain);
+        if (bucket != null) {
+            bucket.collect(beanParameters, candidates);
+        }
+        anyDomainBucket.collect(beanParameters, candidates);
+
+        LinkedList<Configuration> beanConfigurations = new LinkedList<Configuration>();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            Configuration conf = configurations.get(i);
+            if (JMXAttribute.matchBeanFilters(conf, domain, beanStringName, beanParameters)) {
+                beanConfigurations.add(conf);
+            }
+        }
+        return beanConfigurations;
+    }
+}
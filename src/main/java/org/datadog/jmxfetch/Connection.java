@@ -3,25 +3,44 @@ package org.datadog.jmxfetch;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
+import javax.management.JMX;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanException;
+import javax.management.MBeanInfo;
 import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
 import javax.management.ReflectionException;
+import javax.management.remote.JMXConnectionNotification;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
@@ -31,27 +50,209 @@ import org.apache.log4j.Logger;
 public class Connection {
     private static final long CONNECTION_TIMEOUT = 10000;
     private static final long JMX_TIMEOUT = 20;
+    private static final long DEFAULT_CALL_TIMEOUT = 10000;
+    private static final long WATCHDOG_PERIOD = 1000;
+    private static final long WATCHDOG_REPORT_PERIOD = 60000;
+    public static final String CALL_TIMEOUT = "jmx_call_timeout";
     private final static Logger LOGGER = Logger.getLogger(Connection.class.getName());
     private static final ThreadFactory daemonThreadFactory = new DaemonThreadFactory();
-    private JMXConnector connector;
-    private MBeanServerConnection mbs;
+    private static final Set<InFlightCall> inFlightCalls = Collections.newSetFromMap(new ConcurrentHashMap<InFlightCall, Boolean>());
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory);
+    private volatile JMXConnector connector;
+    private volatile MBeanServerConnection mbs;
+    // Attributes of the beans by class name, shared by all the instances using the connection
+    private final ConcurrentHashMap<String, MBeanAttributeInfo[]> mbeanInfoCache = new ConcurrentHashMap<String, MBeanAttributeInfo[]>();
+    private final CopyOnWriteArrayList<NotificationListener> beanRegistrationListeners = new CopyOnWriteArrayList<NotificationListener>();
+    private final ExecutorService callExecutor = Executors.newCachedThreadPool(daemonThreadFactory);
+    private long callTimeout = DEFAULT_CALL_TIMEOUT;
     protected HashMap<String, Object> env;
     protected JMXServiceURL address;
 
+    static {
+        // Log the calls hung in the remote JVM, even after the caller gave up on them
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (InFlightCall call : inFlightCalls) {
+                    if (now > call.deadline && now - call.lastReported > WATCHDOG_REPORT_PERIOD) {
+                        LOGGER.warn("JMX call " + call + " has been hung for " + (now - call.startTime) + " ms");
+                        call.lastReported = now;
+                    }
+                }
+            }
+        }, WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A JMX call running on the call executor, tracked by the watchdog.
+     */
+    private static class InFlightCall {
+        private final String method;
+        private final ObjectName beanName;
+        // The name of the attribute read, or the names of the attributes of a bulk read, rendered when reported
+        private final Object attributes;
+        private final JMXServiceURL address;
+        private final long startTime;
+        private final long deadline;
+        private volatile long lastReported;
+
+        InFlightCall(String method, ObjectName beanName, Object attributes, JMXServiceURL address, long timeout) {
+            this.method = method;
+            this.beanName = beanName;
+            this.attributes = attributes;
+            this.address = address;
+            this.startTime = System.currentTimeMillis();
+            this.deadline = this.startTime + timeout;
+        }
+
+        @Override
+        public String toString() {
+            String attributesString = (attributes instanceof String[]) ? Arrays.toString((String[]) attributes) : (String) attributes;
+            return method + "(" + beanName + (attributesString != null ? ", " + attributesString : "") + ") on " + address;
+        }
+    }
+
+    private interface JMXCall<T> {
+        T call() throws Exception;
+    }
+
     private static <T extends Throwable> T initCause(T wrapper, Throwable wrapped) {
         wrapper.initCause(wrapped);
         return wrapper;
     }
 
+    /**
+     * Set the deadline of every call made to the MBean server (in ms) from the connection parameters.
+     * A deadline of 0 or less disables it.
+     */
+    protected void setCallTimeout(LinkedHashMap<String, Object> connectionParams) {
+        Object callTimeout = connectionParams.get(CALL_TIMEOUT);
+        if (callTimeout != null) {
+            this.callTimeout = ((Number) callTimeout).longValue();
+        }
+    }
+
     public MBeanAttributeInfo[] getAttributesForBean(ObjectName bean_name)
             throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
-        return mbs.getMBeanInfo(bean_name).getAttributes();
+        return getAttributesForBean(bean_name, null);
     }
 
-    public Set<ObjectName> queryNames(ObjectName name) throws IOException {
+    /**
+     * Get the attributes of a bean, from the metadata cache when a bean of the same class was already described.
+     *
+     * Only the immutable MBeanInfos, the ones of standard MBeans and MXBeans, are cached: all the beans of such a class
+     * share the same attributes. Per-table beans in Cassandra share a handful of classes, so the discovery
+     * of a node needs tens of getMBeanInfo calls instead of thousands.
+     *
+     * @param bean_name     the bean
+     * @param className     the class name of the bean, as returned by queryMBeans, or null if unknown
+     */
+    public MBeanAttributeInfo[] getAttributesForBean(final ObjectName bean_name, String className)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+        if (className != null) {
+            MBeanAttributeInfo[] attributes = mbeanInfoCache.get(className);
+            if (attributes != null) {
+                return attributes;
+            }
+        }
+
+        MBeanInfo mbeanInfo;
+        try {
+            mbeanInfo = execute("getMBeanInfo", bean_name, null, new JMXCall<MBeanInfo>() {
+                public MBeanInfo call() throws Exception {
+                    return mbs.getMBeanInfo(bean_name);
+                }
+            });
+        } catch (InstanceNotFoundException | IntrospectionException | ReflectionException | IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        MBeanAttributeInfo[] attributes = mbeanInfo.getAttributes();
+        if (isImmutable(mbeanInfo)) {
+            mbeanInfoCache.put(mbeanInfo.getClassName(), attributes);
+        }
+        return attributes;
+    }
+
+    private static boolean isImmutable(MBeanInfo mbeanInfo) {
+        return mbeanInfo.getClassName() != null
+                && "true".equals(String.valueOf(mbeanInfo.getDescriptor().getFieldValue(JMX.IMMUTABLE_INFO_FIELD)));
+    }
+
+    /**
+     * Query the beans along with their class names, so that their metadata can be looked up in the cache.
+     */
+    public Set<ObjectInstance> queryMBeans(ObjectName name) throws IOException {
+        return queryMBeans(name, null);
+    }
+
+    /**
+     * Query the beans of a scope that match a query, evaluated by the MBean server so that only
+     * the matching beans are sent over the wire.
+     */
+    public Set<ObjectInstance> queryMBeans(final ObjectName name, final QueryExp query) throws IOException {
+        String scope = (name != null) ? name.toString() : "*:*";
+        LOGGER.debug("Querying beans on scope: " + scope + ((query != null) ? " with query: " + query : ""));
+        try {
+            return execute("queryMBeans", name, null, new JMXCall<Set<ObjectInstance>>() {
+                public Set<ObjectInstance> call() throws Exception {
+                    return mbs.queryMBeans(name, query);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return      the number of beans registered in the MBean server
+     */
+    public int getMBeanCount() throws IOException {
+        try {
+            return execute("getMBeanCount", null, null, new JMXCall<Integer>() {
+                public Integer call() throws Exception {
+                    return mbs.getMBeanCount();
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    public boolean isRegistered(final ObjectName name) throws IOException {
+        try {
+            return execute("isRegistered", name, null, new JMXCall<Boolean>() {
+                public Boolean call() throws Exception {
+                    return mbs.isRegistered(name);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    public Set<ObjectName> queryNames(final ObjectName name) throws IOException {
         String scope = (name != null) ? name.toString() : "*:*";
         LOGGER.debug("Querying bean names on scope: " + scope);
-        return mbs.queryNames(name, null);
+        try {
+            return execute("queryNames", name, null, new JMXCall<Set<ObjectName>>() {
+                public Set<ObjectName> call() throws Exception {
+                    return mbs.queryNames(name, null);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
     }
 
     protected void createConnection() throws IOException {
@@ -62,8 +263,179 @@ public class Connection {
         mbs = connector.getMBeanServerConnection();
     }
 
-    public Object getAttribute(ObjectName objectName, String attributeName) throws AttributeNotFoundException, InstanceNotFoundException, MBeanException, ReflectionException, IOException {
-        return mbs.getAttribute(objectName, attributeName);
+    public Object getAttribute(final ObjectName objectName, final String attributeName) throws AttributeNotFoundException, InstanceNotFoundException, MBeanException, ReflectionException, IOException {
+        try {
+            return execute("getAttribute", objectName, attributeName, new JMXCall<Object>() {
+                public Object call() throws Exception {
+                    return mbs.getAttribute(objectName, attributeName);
+                }
+            });
+        } catch (AttributeNotFoundException | InstanceNotFoundException | MBeanException | ReflectionException | IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Read several attributes of the same bean in a single round-trip.
+     * Attributes that cannot be read are silently left out of the returned list.
+     */
+    public AttributeList getAttributes(final ObjectName objectName, final String[] attributeNames) throws InstanceNotFoundException, ReflectionException, IOException {
+        try {
+            return execute("getAttributes", objectName, attributeNames, new JMXCall<AttributeList>() {
+                public AttributeList call() throws Exception {
+                    return mbs.getAttributes(objectName, attributeNames);
+                }
+            });
+        } catch (InstanceNotFoundException | ReflectionException | IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Run a call to the MBean server with the connection call timeout.
+     *
+     * A call that doesn't complete in time is abandoned and the connector is recycled,
+     * as a hung call (long GC, exhausted RMI thread pool) may never return.
+     *
+     * @param attributes    the name of the attribute, or the array of names of the attributes, that the call reads
+     */
+    private <T> T execute(String method, ObjectName beanName, Object attributes, final JMXCall<T> jmxCall) throws Exception {
+        if (callTimeout <= 0) {
+            return jmxCall.call();
+        }
+
+        final InFlightCall inFlightCall = new InFlightCall(method, beanName, attributes, address, callTimeout);
+        Future<T> future = callExecutor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                inFlightCalls.add(inFlightCall);
+                try {
+                    return jmxCall.call();
+                } finally {
+                    inFlightCalls.remove(inFlightCall);
+                }
+            }
+        });
+
+        try {
+            return future.get(callTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            String message = "JMX call " + inFlightCall + " didn't complete within " + callTimeout + " ms";
+            LOGGER.warn(message + ". Abandoning it and recycling the connector.");
+            recycleConnector();
+            throw new JMXCallTimeoutException(message);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw initCause(new InterruptedIOException(e.getMessage()), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Replace the connector, and its MBean server connection, by a brand new one.
+     */
+    private synchronized void recycleConnector() throws IOException {
+        // Closing the old connector may hang as long as the call that timed out, it is left to the call executor
+        final JMXConnector oldConnector = connector;
+        connector = null;
+        if (oldConnector != null) {
+            callExecutor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        oldConnector.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            });
+        }
+        createConnection();
+
+        // The listeners were registered through the old connector: subscribe them again and let them know
+        // that they may have missed some notifications in between
+        for (NotificationListener listener : beanRegistrationListeners) {
+            subscribe(listener);
+            listener.handleNotification(new JMXConnectionNotification(JMXConnectionNotification.NOTIFS_LOST,
+                    this, connector.getConnectionId(), 0, "Connector recycled", null), null);
+        }
+    }
+
+    /**
+     * Listen to the registrations and unregistrations of beans on the MBean server.
+     * The listener also receives the notifications of the connector, for instance when notifications were lost.
+     */
+    public void addBeanRegistrationListener(NotificationListener listener) throws IOException {
+        subscribe(listener);
+        beanRegistrationListeners.add(listener);
+    }
+
+    /**
+     * Stop listening to the registrations of beans. This is best-effort: the listener is removed from the MBean server
+     * on the call executor, waiting for it no longer than the call timeout and without recycling the connector, as it
+     * is mostly done when the connection is about to be closed.
+     */
+    public void removeBeanRegistrationListener(final NotificationListener listener) {
+        beanRegistrationListeners.remove(listener);
+        try {
+            connector.removeConnectionNotificationListener(listener);
+        } catch (Exception e) {
+            LOGGER.debug("Cannot remove bean registration listener from the connector: " + e.getMessage());
+        }
+
+        final MBeanServerConnection mbs = this.mbs;
+        Future<?> removal = callExecutor.submit(new Runnable() {
+            public void run() {
+                try {
+                    mbs.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener);
+                } catch (Exception e) {
+                    // The connector is most likely closed already
+                    LOGGER.debug("Cannot remove bean registration listener: " + e.getMessage());
+                }
+            }
+        });
+        if (callTimeout <= 0) {
+            return;
+        }
+        try {
+            removal.get(callTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            removal.cancel(true);
+            LOGGER.debug("Removal of bean registration listener on " + address + " didn't complete within " + callTimeout + " ms. Abandoning it.");
+        } catch (InterruptedException e) {
+            removal.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Logged by the removal itself
+        }
+    }
+
+    private void subscribe(final NotificationListener listener) throws IOException {
+        final NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        try {
+            execute("addNotificationListener", MBeanServerDelegate.DELEGATE_NAME, null, new JMXCall<Void>() {
+                public Void call() throws Exception {
+                    mbs.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, filter, null);
+                    return null;
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        connector.addConnectionNotificationListener(listener, null, null);
     }
 
     /**
@@ -124,13 +496,22 @@ public class Connection {
         }
     }
 
+    /**
+     * Check the connection with a round trip bounded by the call timeout, as it is mostly called once a call
+     * failed, when the server may well not be answering anymore.
+     */
     public boolean isAlive() {
-        if (connector == null) {
+        final JMXConnector currentConnector = connector;
+        if (currentConnector == null) {
             return false;
         }
         try {
-            connector.getConnectionId();
-        } catch (IOException e) { // the connection is closed or broken
+            execute("getConnectionId", null, null, new JMXCall<String>() {
+                public String call() throws Exception {
+                    return currentConnector.getConnectionId();
+                }
+            });
+        } catch (Exception e) { // the connection is closed, broken or doesn't answer in time
             return false;
         }
         return true;
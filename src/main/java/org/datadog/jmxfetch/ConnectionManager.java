@@ -1,8 +1,8 @@
 package org.datadog.jmxfetch;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -14,13 +14,17 @@ public class ConnectionManager {
     private final static Logger LOGGER = Logger.getLogger(ConnectionManager.class.getName());
     public static final String PROCESS_NAME_REGEX = "process_name_regex";
     private static ConnectionManager connectionManager = null;
-    private HashMap<String, Connection> cache;
+    // Instances are reconnected from background threads
+    private ConcurrentHashMap<String, Connection> cache;
+    // Held while the connection of a key is checked and replaced, so that connections to other servers don't wait
+    private ConcurrentHashMap<String, Object> locks;
 
     private ConnectionManager() {
-        cache = new HashMap<String, Connection>();
+        cache = new ConcurrentHashMap<String, Connection>();
+        locks = new ConcurrentHashMap<String, Object>();
     }
 
-    public static ConnectionManager getInstance() {
+    public static synchronized ConnectionManager getInstance() {
         if (connectionManager == null) {
             connectionManager = new ConnectionManager();
         }
@@ -54,20 +58,36 @@ public class ConnectionManager {
 
     public Connection getConnection(LinkedHashMap<String, Object> connectionParams, boolean forceNewConnection) throws IOException {
         String key = generateKey(connectionParams);
-        Connection existingConnection = cache.get(key);
-        if (existingConnection == null || !existingConnection.isAlive()) {
-            LOGGER.info("Connection closed or does not exist. Creating a new connection!");
-            cache.put(key, createConnection(connectionParams));
-        } else {
-            if (forceNewConnection) {
-                LOGGER.info("Forcing the creation of a new connection");
-                cache.get(key).closeConnector();
-                cache.put(key, createConnection(connectionParams));
-            } else {
+        Object lock = locks.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        synchronized (lock) {
+            Connection existingConnection = cache.get(key);
+            boolean alive = existingConnection != null && existingConnection.isAlive();
+            if (alive && !forceNewConnection) {
                 LOGGER.info("Connection already exists for key: " + key + " . Using it...");
+                return existingConnection;
+            }
+
+            if (!alive) {
+                LOGGER.info("Connection closed or does not exist. Creating a new connection!");
+            } else {
+                LOGGER.info("Forcing the creation of a new connection");
+            }
+            Connection connection = createConnection(connectionParams);
+            cache.put(key, connection);
+            if (existingConnection != null) {
+                // Closed even when broken, its connector may still hold resources
+                existingConnection.closeConnector();
             }
+            return connection;
         }
-        return cache.get(key);
     }
 
 }
\ No newline at end of file
@@ -1,16 +1,28 @@
 package org.datadog.jmxfetch;
 
-import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.lang.ClassCastException;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 
 class Filter {
     HashMap<String, Object> filter;
-    Pattern domainRegex;
-    ArrayList<Pattern> beanRegexes = null;
+    // Compiled once: the filter values are looked up for every bean and attribute matched, possibly by a background
+    // discovery and the collecting thread at the same time
+    private final Pattern domainRegex;
+    private final ArrayList<BeanRegex> beanRegexes = new ArrayList<BeanRegex>();
+    private final HashMap<String, ArrayList<String>> parameterValues = new HashMap<String, ArrayList<String>>();
+    private final HashMap<String, HashSet<String>> parameterValueSets = new HashMap<String, HashSet<String>>();
+    private final ArrayList<String> beanParameterKeys = new ArrayList<String>();
+    private final ArrayList<String> beanNames;
+    private final HashSet<String> beanNameSet;
+    private final Set<String> attributeNames;
 
     /**
      * A simple class to manipulate include/exclude filter elements more easily
@@ -18,6 +30,7 @@ class Filter {
      * - A domain (key: 'domain') or a domain regex (key: 'domain_regex')
      * - Bean names (key: 'bean' or 'bean_name') or bean regexes (key: 'bean_regex')
      * - Attributes (key: 'attribute')
+     * - A collection priority (key: 'priority')
      * - Additional bean parameters (other keys)
      */
 
@@ -30,6 +43,65 @@ class Filter {
             castFilter = new HashMap<String, Object>();
         }
         this.filter = castFilter;
+
+        for (String key : this.filter.keySet()) {
+            if (!JMXAttribute.getExcludedBeanParams().contains(key)) {
+                beanParameterKeys.add(key);
+                ArrayList<String> values = toStringArrayList(this.filter.get(key));
+                parameterValues.put(key, values);
+                parameterValueSets.put(key, new HashSet<String>(values));
+            }
+        }
+
+        if (isEmptyBeanName()) {
+            beanNames = new ArrayList<String>();
+        } else {
+            beanNames = toStringArrayList((this.filter.get("bean") != null) ? this.filter.get("bean") : this.filter.get("bean_name"));
+        }
+        beanNameSet = new HashSet<String>(beanNames);
+
+        if (this.filter.get("bean_regex") != null) {
+            for (String regex : toStringArrayList(this.filter.get("bean_regex"))) {
+                beanRegexes.add(new BeanRegex(regex));
+            }
+        }
+        domainRegex = (this.filter.get("domain_regex") != null) ? Pattern.compile((String) this.filter.get("domain_regex")) : null;
+
+        Object attribute = this.filter.get("attribute");
+        if (attribute instanceof Map<?, ?>) {
+            attributeNames = new HashSet<String>(((Map<String, Object>) attribute).keySet());
+        } else if (attribute instanceof List<?>) {
+            attributeNames = new HashSet<String>((List<String>) attribute);
+        } else {
+            attributeNames = Collections.emptySet();
+        }
+    }
+
+    /**
+     * A precompiled bean regex. The common `.*literal.*` regexes are matched with a plain substring search.
+     */
+    static class BeanRegex {
+        private static final Pattern CONTAINS_LITERAL = Pattern.compile("\\.\\*([^\\\\.\\[\\]{}()*+?^$|]*)\\.\\*");
+        private final Pattern pattern;
+        private final String literal;
+
+        BeanRegex(String regex) {
+            this.pattern = Pattern.compile(regex);
+            Matcher matcher = CONTAINS_LITERAL.matcher(regex);
+            this.literal = matcher.matches() ? matcher.group(1) : null;
+        }
+
+        boolean matches(String beanStringName) {
+            if (literal != null) {
+                return beanStringName.contains(literal);
+            }
+            return pattern.matcher(beanStringName).matches();
+        }
+
+        @Override
+        public String toString() {
+            return pattern.pattern();
+        }
     }
 
     public String toString() {
@@ -40,7 +112,7 @@ class Filter {
         return filter.keySet();
     }
 
-    @SuppressWarnings({ "unchecked", "serial" })
+    @SuppressWarnings("unchecked")
     private static ArrayList<String> toStringArrayList(final Object toCast) {
         // Return object as an ArrayList wherever it's defined as
         // list or not
@@ -52,21 +124,16 @@ class Filter {
         // ### OR
         // object: singleValue
         // ###
-        try{
+        if (toCast instanceof ArrayList<?>) {
             return (ArrayList<String>) toCast;
-        } catch (ClassCastException e){
-            return new ArrayList<String>() {{
-                add(((String) toCast));
-            }};
         }
+        ArrayList<String> list = new ArrayList<String>(1);
+        list.add(toCast != null ? toCast.toString() : null);
+        return list;
     }
 
 
     public ArrayList<String> getBeanNames() {
-        if (isEmptyBeanName()){
-            return new ArrayList<String>();
-        }
-        final Object beanNames = (filter.get("bean") != null) ? filter.get("bean") : filter.get("bean_name");
         // Return bean names as an ArrayList wherever it's defined as
         // list or not
         //
@@ -77,32 +144,16 @@ class Filter {
         // ### OR
         // bean: org.datadog.jmxfetch.test:type=type=SimpleTestJavaApp
         // ###
-        return toStringArrayList(beanNames);
+        return beanNames;
     }
 
-    private static ArrayList<Pattern> toPatternArrayList(final Object toCast) {
-        ArrayList<Pattern> patternArrayList = new ArrayList<Pattern>();
-        ArrayList<String> stringArrayList = toStringArrayList(toCast);
-        for (String string : stringArrayList) {
-            patternArrayList.add(Pattern.compile(string));
-        }
-
-        return patternArrayList;
+    public Set<String> getBeanNameSet() {
+        return beanNameSet;
     }
 
-    public ArrayList<Pattern> getBeanRegexes() {
-        // Return bean regexes as an ArrayList of Pattern whether it's defined as
+    public ArrayList<BeanRegex> getBeanRegexes() {
+        // Return bean regexes as an ArrayList of BeanRegex whether it's defined as
         // a list or not
-
-        if (this.beanRegexes == null) {
-            if (filter.get("bean_regex") == null){
-                this.beanRegexes = new ArrayList<Pattern>();
-            } else {
-                final Object beanRegexNames = filter.get("bean_regex");
-                this.beanRegexes = toPatternArrayList(beanRegexNames);
-            }
-        }
-
         return this.beanRegexes;
     }
 
@@ -111,14 +162,6 @@ class Filter {
     }
 
     public Pattern getDomainRegex() {
-        if (this.filter.get("domain_regex") == null) {
-            return null;
-        }
-
-        if (this.domainRegex == null) {
-            this.domainRegex = Pattern.compile((String) this.filter.get("domain_regex"));
-        }
-
         return this.domainRegex;
     }
 
@@ -126,6 +169,28 @@ class Filter {
         return filter.get("attribute");
     }
 
+    /**
+     * @return      the priority of the matching attributes, higher priorities are read first (default: 0)
+     */
+    public int getPriority() {
+        Object priority = filter.get("priority");
+        return (priority != null) ? ((Number) priority).intValue() : 0;
+    }
+
+    /**
+     * @return      the names of the attributes filtered on, empty if there is no attribute filter
+     */
+    public Set<String> getAttributeNames() {
+        return attributeNames;
+    }
+
+    /**
+     * @return      the keys of the bean parameters filtered on
+     */
+    public ArrayList<String> getBeanParameterKeys() {
+        return beanParameterKeys;
+    }
+
     public ArrayList<String> getParameterValues(String parameterName) {
         // Return bean attributes values as an ArrayList wherever it's defined as
         // list or not
@@ -137,8 +202,13 @@ class Filter {
         // ### OR
         // bean_parameter: onlyOneType
         // ###
-        final Object beanValues = filter.get(parameterName);
-        return toStringArrayList(beanValues);
+        ArrayList<String> values = parameterValues.get(parameterName);
+        return (values != null) ? values : toStringArrayList(filter.get(parameterName));
+    }
+
+    public Set<String> getParameterValueSet(String parameterName) {
+        HashSet<String> values = parameterValueSets.get(parameterName);
+        return (values != null) ? values : new HashSet<String>(getParameterValues(parameterName));
     }
 
     public boolean isEmptyBeanName() {
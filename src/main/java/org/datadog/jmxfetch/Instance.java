@@ -4,11 +4,30 @@ import org.apache.log4j.Logger;
 import org.datadog.jmxfetch.reporter.Reporter;
 import org.datadog.jmxfetch.util.JMXUtil;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.ObjectInstance;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.remote.JMXConnectionNotification;
 import javax.security.auth.login.FailedLoginException;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Instance {
     private final static Logger LOGGER = Logger.getLogger(Instance.class.getName());
@@ -19,14 +38,42 @@ public class Instance {
     private final static List<String> COMPOSED_TYPES = Arrays.asList("javax.management.openmbean.CompositeData", "java.util.HashMap", "long[]");
     private final static int MAX_RETURNED_METRICS = 350;
     private final static int DEFAULT_REFRESH_BEANS_PERIOD = 600;
+    private final static int DEFAULT_NOTIFIED_REFRESH_BEANS_PERIOD = 3600;
+    private final static int DISCOVERY_BATCH_SIZE = 100;
+    private final static long MAX_QUARANTINE_DELAY = 600000;
+    private final static Comparator<JMXAttribute> PRIORITY_ORDER = new Comparator<JMXAttribute>() {
+        public int compare(JMXAttribute a1, JMXAttribute a2) {
+            return Integer.compare(a2.getPriority(), a1.getPriority());
+        }
+    };
     public static final String PROCESS_NAME_REGEX = "process_name_regex";
     public static final String ATTRIBUTE = "Attribute: ";
+    private static final ThreadFactory DISCOVERY_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jmxfetch-discovery-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+    // Shared by all the instances, created on first use with as many threads as the collection pool
+    private static ExecutorService discoveryExecutor;
 
     private Set<ObjectName> beans;
-    private LinkedList<String> beanScopes;
+    // Class names of the beans, not known for the beans discovered through notifications
+    private HashMap<ObjectName, String> beanClassNames = new HashMap<ObjectName, String>();
+    // Read by the background discoveries too
+    private volatile LinkedList<String> beanScopes;
     private LinkedList<Configuration> configurationList = new LinkedList<Configuration>();
+    private ConfigurationIndex configurationIndex;
     private LinkedList<JMXAttribute> matchingAttributes;
-    private HashSet<JMXAttribute> failingAttributes;
+    // The names, tags and values of the metrics of the matching attributes
+    private final AttributeRegistry attributeRegistry = new AttributeRegistry();
+    // Filled again at each collection, the reporter is done with it before the next one starts
+    private final MetricBatch metricBatch = new MetricBatch(attributeRegistry);
+    // Attributes that failed in the last collections, skipped while they are quarantined
+    private HashMap<JMXAttribute, AttributeFailures> failingAttributes;
     private Integer refreshBeansPeriod;
     private long lastRefreshTime;
     private LinkedHashMap<String, Object> yaml;
@@ -36,9 +83,74 @@ public class Instance {
     private String checkName;
     private int maxReturnedMetrics;
     private boolean limitReached;
-    private Connection connection;
+    // Replaced by a rebind while a background discovery may be using it
+    private volatile Connection connection;
     private AppConfig appConfig;
     private Boolean cassandraAliasing;
+    private boolean bulkReads;
+    // The matching attributes grouped by bean for the bulk reads, built again when they change
+    private ArrayList<BeanReads> beanReads;
+    private Integer collectionBudget;
+    private LinkedHashSet<JMXAttribute> deferredAttributes = new LinkedHashSet<JMXAttribute>();
+    // Attributes whose chart will be defined once their number of metrics is known
+    private HashSet<JMXAttribute> undefinedChartAttributes = new HashSet<JMXAttribute>();
+    // Attributes found past the maximum number of metrics on their first read, removed after the collection
+    private ArrayList<JMXAttribute> limitedAttributes = new ArrayList<JMXAttribute>();
+    private int metricsCount;
+    // Beans listed but not matched yet
+    private final ArrayDeque<ObjectName> pendingBeans = new ArrayDeque<ObjectName>();
+    private HashSet<ObjectName> beansToRematch = new HashSet<ObjectName>();
+    private boolean metricReachedDisplayed;
+    private boolean subscribedToBeanNotifications;
+    private LinkedList<ObjectName> beanScopePatterns = new LinkedList<ObjectName>();
+    private volatile boolean beanQueryUnsupported = false;
+    // Where the collection plan is persisted, null if it isn't
+    private File planFile;
+    private int beanCount = -1;
+    private BeanDiscovery runningDiscovery;
+    // Start time of the monitored JVM, to tell a reconnection to the same JVM from a restart. -1 if unknown
+    private long jvmStartTime = -1;
+    private final ConcurrentLinkedQueue<MBeanServerNotification> beanNotifications = new ConcurrentLinkedQueue<MBeanServerNotification>();
+    private volatile boolean beanNotificationsLost;
+    /**
+     * The beans listed by a background discovery, and the attributes matched on the beans that were not known yet.
+     */
+    private static class BeanDiscovery {
+        private final Set<ObjectName> knownBeans;
+        // The beans notified while the discovery was running, their notifications are more recent than the listing
+        private final HashSet<ObjectName> notifiedBeans = new HashSet<ObjectName>();
+        private final HashMap<ObjectName, ArrayList<JMXAttribute>> matchedAttributes = new HashMap<ObjectName, ArrayList<JMXAttribute>>();
+        private LinkedHashMap<ObjectName, String> beans;
+        private int beanCount = -1;
+        private boolean failed;
+        // Set once the fields above are filled in, publishing them to the collecting thread
+        private volatile boolean done;
+        private Future<?> future;
+
+        private BeanDiscovery(Set<ObjectName> knownBeans) {
+            this.knownBeans = knownBeans;
+        }
+    }
+
+    /**
+     * Consecutive failures of an attribute. An attribute failing twice in a row is quarantined: it is skipped
+     * until its next retry, the delay doubling with every new failure.
+     */
+    private static class AttributeFailures {
+        private int count;
+        private long retryTime;
+    }
+
+    private final NotificationListener beanRegistrationListener = new NotificationListener() {
+        public void handleNotification(Notification notification, Object handback) {
+            if (notification instanceof MBeanServerNotification) {
+                beanNotifications.add((MBeanServerNotification) notification);
+            } else if (JMXConnectionNotification.NOTIFS_LOST.equals(notification.getType())) {
+                // Some registrations may have been missed, the next collection refreshes the whole bean list
+                beanNotificationsLost = true;
+            }
+        }
+    };
 
 
     public Instance(Instance instance, AppConfig appConfig) {
@@ -62,13 +174,8 @@ public class Instance {
         this.tags = (LinkedHashMap<String, String>) yaml.get("tags");
         this.checkName = checkName;
         this.matchingAttributes = new LinkedList<JMXAttribute>();
-        this.failingAttributes = new HashSet<JMXAttribute>();
+        this.failingAttributes = new HashMap<JMXAttribute, AttributeFailures>();
         this.refreshBeansPeriod = (Integer) yaml.get("refresh_beans");
-        if (this.refreshBeansPeriod == null) {
-            this.refreshBeansPeriod = DEFAULT_REFRESH_BEANS_PERIOD; // Make sure to refresh the beans list every 10 minutes
-            // Useful because sometimes if the application restarts, jmxfetch might read
-            // a jmxtree that is not completely initialized and would be missing some attributes
-        }
         this.lastRefreshTime = 0;
         this.limitReached = false;
         Object maxReturnedMetrics = this.yaml.get("max_returned_metrics");
@@ -97,6 +204,23 @@ public class Instance {
             this.cassandraAliasing = false;
         }
 
+        // Read all the matching attributes of a bean with a single getAttributes call
+        // instead of one getAttribute round-trip per attribute
+        Boolean bulkReads = (Boolean) yaml.get("bulk_reads");
+        this.bulkReads = bulkReads == null || bulkReads;
+
+        // Stop issuing reads once a collection has run for that long (in ms), the attributes left over
+        // are read first in the next collection. Attributes are read by decreasing "priority" of their conf
+        this.collectionBudget = (Integer) yaml.get("collection_budget");
+
+        // Persist the beans and matched attributes under the conf directory, so that a restart can start
+        // collecting right away. The beans are then discovered again in the background
+        Boolean persistPlan = (Boolean) yaml.get("persist_plan");
+        if (persistPlan != null && persistPlan && appConfig.getConfdDirectory() != null) {
+            String fileName = (this.checkName + "-" + this.instanceName).replaceAll("[^a-zA-Z0-9._-]", "_") + ".plan";
+            this.planFile = new File(new File(appConfig.getConfdDirectory(), "plans"), fileName);
+        }
+
         // In case the configuration to match beans is not specified in the "instance" parameter but in the initConfig one
         Object yamlConf = this.yaml.get("conf");
         if (yamlConf == null && this.initConfig != null) {
@@ -111,6 +235,8 @@ public class Instance {
             }
         }
 
+        this.configurationIndex = new ConfigurationIndex(configurationList);
+
         // Add the configuration to get the default basic metrics from the JVM
         //configurationList.add(new Configuration((LinkedHashMap<String, Object>) new YamlParser(this.getClass().getResourceAsStream("/jmx-1.yaml")).getParsedYaml()));
         //configurationList.add(new Configuration((LinkedHashMap<String, Object>) new YamlParser(this.getClass().getResourceAsStream("/jmx-2.yaml")).getParsedYaml()));
@@ -120,8 +246,97 @@ public class Instance {
         LOGGER.info("Trying to connect to JMX Server at " + this.toString());
         connection = ConnectionManager.getInstance().getConnection(yaml, forceNewConnection);
         LOGGER.info("Connected to JMX Server at " + this.toString());
-        this.refreshBeansList();
-        this.getMatchingAttributes();
+        this.jvmStartTime = readJvmStartTime();
+        // Subscribe before listing the beans so that no registration falls in between
+        if (appConfig.getAction().equals(AppConfig.ACTION_COLLECT)) {
+            this.subscribeToBeanNotifications();
+        }
+        if (this.yaml.get("refresh_beans") == null) {
+            // Make sure to refresh the beans list every 10 minutes, or every hour when notified of new beans
+            // Useful because sometimes if the application restarts, jmxfetch might read
+            // a jmxtree that is not completely initialized and would be missing some attributes
+            this.refreshBeansPeriod = this.subscribedToBeanNotifications ? DEFAULT_NOTIFIED_REFRESH_BEANS_PERIOD : DEFAULT_REFRESH_BEANS_PERIOD;
+        }
+        if (!this.loadPlan()) {
+            this.refreshBeansList();
+            this.getMatchingAttributes();
+        }
+    }
+
+    /**
+     * Reconnect to the JMX server and carry on collecting the attributes matched so far with the new connection,
+     * instead of discovering the beans again. The beans registered in the meantime are found by a background refresh.
+     *
+     * @return      true if the JVM kept running in between, so that the rates computed so far are still valid
+     * @throws InstanceNotFoundException    if a bean of the plan is gone, the beans must then be discovered again
+     */
+    public boolean rebind() throws IOException, InstanceNotFoundException {
+        LOGGER.info("Trying to reconnect to JMX Server at " + this.toString() + ", keeping its " + this.matchingAttributes.size() + " matching attributes");
+        // A discovery still running would carry on with the old connection
+        this.cancelDiscovery();
+        connection = ConnectionManager.getInstance().getConnection(yaml, true);
+
+        // The beans of the plan are looked up with a query per bean scope, as for the discovery, rather than one by one
+        Set<ObjectName> registeredBeans = queryRegisteredBeanNames();
+        for (JMXAttribute jmxAttr : this.matchingAttributes) {
+            if (!registeredBeans.contains(jmxAttr.getBeanName())) {
+                throw new InstanceNotFoundException(jmxAttr.getBeanName().toString());
+            }
+        }
+        for (JMXAttribute jmxAttr : this.matchingAttributes) {
+            jmxAttr.setConnection(connection);
+        }
+        LOGGER.info("Reconnected to JMX Server at " + this.toString());
+
+        // The beans may have changed while disconnected: refresh them in the background, as when notifications are lost
+        this.beanNotifications.clear();
+        if (this.subscribedToBeanNotifications) {
+            this.subscribeToBeanNotifications();
+        }
+        this.beanNotificationsLost = true;
+        this.failingAttributes.clear();
+
+        long previousStartTime = this.jvmStartTime;
+        this.jvmStartTime = readJvmStartTime();
+        return previousStartTime != -1 && previousStartTime == this.jvmStartTime;
+    }
+
+    /**
+     * @return      the names of the beans registered in the scopes of the configuration, or of all the beans
+     *              if the scopes cannot be computed
+     */
+    private Set<ObjectName> queryRegisteredBeanNames() throws IOException {
+        ArrayList<ObjectName> scopes = new ArrayList<ObjectName>();
+        try {
+            for (String scope : getBeansScopes()) {
+                scopes.add(new ObjectName(scope));
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Unable to compute the bean scopes of " + this + ", querying all beans: " + e.getMessage());
+            scopes.clear();
+        }
+        if (scopes.isEmpty()) {
+            return connection.queryNames(null);
+        }
+
+        HashSet<ObjectName> beanNames = new HashSet<ObjectName>();
+        for (ObjectName scope : scopes) {
+            beanNames.addAll(connection.queryNames(scope));
+        }
+        return beanNames;
+    }
+
+    /**
+     * @return      the start time of the monitored JVM, or -1 if it doesn't expose it
+     */
+    private long readJvmStartTime() {
+        try {
+            Object startTime = connection.getAttribute(new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME), "StartTime");
+            return (startTime instanceof Long) ? (Long) startTime : -1;
+        } catch (Exception e) {
+            LOGGER.debug("Cannot read the start time of the JVM of " + this + ": " + e.getMessage());
+            return -1;
+        }
     }
 
     @Override
@@ -135,60 +350,400 @@ public class Instance {
         }
     }
 
-    public LinkedList<HashMap<String, Object>> getMetrics() throws IOException {
+    /**
+     * @return      the metrics of the collection, in a batch reused by the next collection
+     */
+    public MetricBatch getMetrics() throws IOException {
 
         // We can force to refresh the bean list every x seconds in case of ephemeral beans
         // To enable this, a "refresh_beans" parameter must be specified in the yaml config file
-        if (this.refreshBeansPeriod != null && (System.currentTimeMillis() - this.lastRefreshTime) / 1000 > this.refreshBeansPeriod) {
+        // When subscribed to the bean registrations, this is just a safety net and new beans are matched as they appear
+        // The bean list is refreshed in the background, the differences found are applied between two collections
+        if (this.runningDiscovery != null && this.runningDiscovery.done) {
+            BeanDiscovery discovery = this.runningDiscovery;
+            this.runningDiscovery = null;
+            this.applyDiscovery(discovery);
+        } else if (this.runningDiscovery == null && (this.beanNotificationsLost
+                || this.refreshBeansPeriod != null && (System.currentTimeMillis() - this.lastRefreshTime) / 1000 > this.refreshBeansPeriod)) {
             LOGGER.info("Refreshing bean list");
-            this.refreshBeansList();
-            this.getMatchingAttributes();
+            this.startDiscovery();
+        }
+        if (!this.beanNotifications.isEmpty()) {
+            this.processBeanNotifications();
         }
 
-        LinkedList<HashMap<String, Object>> metrics = new LinkedList<HashMap<String, Object>>();
-        Iterator<JMXAttribute> it = matchingAttributes.iterator();
+        // Carry on with the discovery of the beans not matched yet, the attributes matched so far are collected meanwhile
+        if (!this.pendingBeans.isEmpty()) {
+            this.matchPendingBeans();
+        }
 
-        while (it.hasNext()) {
-            JMXAttribute jmxAttr = it.next();
-            try {
-                LinkedList<HashMap<String, Object>> jmxAttrMetrics = jmxAttr.getMetrics();
-                for (HashMap<String, Object> m : jmxAttrMetrics) {
-                    m.put("check_name", this.checkName);
-                    metrics.add(m);
-                }
+        MetricBatch metrics = this.metricBatch;
+        metrics.clear();
+        long deadline = (this.collectionBudget != null) ? System.nanoTime() + this.collectionBudget * 1000000L : Long.MAX_VALUE;
 
-                if (this.failingAttributes.contains(jmxAttr)) {
-                    this.failingAttributes.remove(jmxAttr);
+        // The attributes deferred by the previous collection are read first, so that they are not starved
+        List<JMXAttribute> attributes = this.matchingAttributes;
+        if (!this.deferredAttributes.isEmpty()) {
+            attributes = new ArrayList<JMXAttribute>(this.deferredAttributes);
+            for (JMXAttribute jmxAttr : this.matchingAttributes) {
+                if (!this.deferredAttributes.contains(jmxAttr)) {
+                    attributes.add(jmxAttr);
                 }
-            } catch (IOException e) {
-                throw e;
-            } catch (Exception e) {
-                LOGGER.debug("Cannot get metrics for attribute: " + jmxAttr, e);
-                if (this.failingAttributes.contains(jmxAttr)) {
-                    LOGGER.debug("Cannot generate metrics for attribute: " + jmxAttr + " twice in a row. Removing it from the attribute list");
-                    it.remove();
+            }
+            this.deferredAttributes.clear();
+        }
+        if (!this.failingAttributes.isEmpty()) {
+            attributes = getUnquarantinedAttributes(attributes);
+        }
+
+        // The metrics collected before the connection is lost are still reported
+        IOException connectionError = null;
+        try {
+            if (this.bulkReads) {
+                // Unless some attributes are deferred or quarantined, the grouping of the previous collection is reused
+                ArrayList<BeanReads> reads;
+                if (attributes == this.matchingAttributes) {
+                    if (this.beanReads == null) {
+                        this.beanReads = getBeanReads(attributes);
+                    }
+                    reads = this.beanReads;
                 } else {
-                    this.failingAttributes.add(jmxAttr);
+                    reads = getBeanReads(attributes);
+                }
+                for (int i = 0; i < reads.size(); i++) {
+                    BeanReads beanReads = reads.get(i);
+                    if (i > 0 && System.nanoTime() > deadline) {
+                        for (JMXAttribute jmxAttr : beanReads.attributes) {
+                            this.deferredAttributes.add(jmxAttr);
+                        }
+                        continue;
+                    }
+                    if (prefetchValues(beanReads)) {
+                        collectMetrics(beanReads.attributes, metrics, deadline);
+                    }
+                }
+            } else {
+                int collected = 0;
+                for (int i = 0; i < attributes.size(); i++) {
+                    JMXAttribute jmxAttr = attributes.get(i);
+                    if (collected > 0 && System.nanoTime() > deadline) {
+                        this.deferredAttributes.add(jmxAttr);
+                        continue;
+                    }
+                    collected++;
+                    collectMetrics(jmxAttr, metrics, deadline);
                 }
             }
+        } catch (IOException e) {
+            connectionError = e;
+        }
+        if (!this.limitedAttributes.isEmpty()) {
+            this.removeLimitedAttributes();
+        }
+
+        if (!this.deferredAttributes.isEmpty()) {
+            LOGGER.warn("Collection budget of " + this.collectionBudget + " ms exhausted for instance " + this
+                    + ". Deferring " + this.deferredAttributes.size() + " attributes to the next collection");
+        }
+
+        if (connectionError != null) {
+            if (!metrics.isEmpty()) {
+                throw new PartialCollectionException(connectionError, metrics);
+            }
+            throw connectionError;
         }
         return metrics;
     }
 
+    /**
+     * Collect the metrics of the given attributes. An attribute failing with an I/O error while the connection is
+     * still alive, like a value that cannot be unmarshalled, is retried once if the collection budget allows it,
+     * then quarantined like any other failing attribute.
+     *
+     * @throws IOException      if the connection is lost
+     */
+    private void collectMetrics(JMXAttribute[] attributes, MetricBatch metrics, long deadline) throws IOException {
+        for (JMXAttribute jmxAttr : attributes) {
+            collectMetrics(jmxAttr, metrics, deadline);
+        }
+    }
+
+    private void collectMetrics(JMXAttribute jmxAttr, MetricBatch metrics, long deadline) throws IOException {
+        try {
+            try {
+                collectMetrics(jmxAttr, metrics);
+            } catch (IOException e) {
+                if (e instanceof JMXCallTimeoutException || System.nanoTime() > deadline || !connection.isAlive()) {
+                    throw e;
+                }
+                LOGGER.debug("Cannot get metrics for attribute: " + jmxAttr + ": " + e.getMessage() + ". Retrying");
+                jmxAttr.clearPrefetchedValue();
+                collectMetrics(jmxAttr, metrics);
+            }
+            if (!this.failingAttributes.isEmpty()) {
+                this.failingAttributes.remove(jmxAttr);
+            }
+        } catch (JMXCallTimeoutException e) {
+            // The connector has been recycled, the attribute is just missing from this collection
+            LOGGER.warn("Cannot get metrics for attribute: " + jmxAttr + ": " + e.getMessage());
+        } catch (IOException e) {
+            if (!connection.isAlive()) {
+                throw e;
+            }
+            quarantine(jmxAttr, e);
+        } catch (Exception e) {
+            quarantine(jmxAttr, e);
+        } finally {
+            jmxAttr.clearPrefetchedValue();
+        }
+    }
+
+    private void collectMetrics(JMXAttribute jmxAttr, MetricBatch metrics) throws Exception {
+        if (jmxAttr.isMetricsCountKnown()) {
+            jmxAttr.collect(metrics);
+            return;
+        }
+
+        int previousMetricsCount = jmxAttr.getMetricsCount();
+        int batchSize = metrics.size();
+        jmxAttr.collect(metrics);
+        int attributeMetricsCount = jmxAttr.getMetricsCount();
+        this.metricsCount += attributeMetricsCount - previousMetricsCount;
+        if (this.metricsCount >= this.maxReturnedMetrics) {
+            // As when matching, the attribute reaching the limit is collected but none after it
+            this.limitReached = true;
+            if (this.metricsCount - attributeMetricsCount >= this.maxReturnedMetrics) {
+                LOGGER.warn("Maximum number of metrics reached. Not collecting the " + attributeMetricsCount + " metrics of " + jmxAttr);
+                metrics.truncate(batchSize);
+                this.undefinedChartAttributes.remove(jmxAttr);
+                this.limitedAttributes.add(jmxAttr);
+                return;
+            }
+        }
+        if (this.undefinedChartAttributes.remove(jmxAttr)) {
+            printChartDefinition(jmxAttr);
+        }
+    }
+
+    /**
+     * Stop collecting the attributes found past the maximum number of metrics.
+     */
+    private void removeLimitedAttributes() {
+        for (JMXAttribute jmxAttr : this.limitedAttributes) {
+            if (this.matchingAttributes.remove(jmxAttr)) {
+                this.metricsCount -= jmxAttr.getMetricsCount();
+            }
+            jmxAttr.release();
+            this.failingAttributes.remove(jmxAttr);
+            this.deferredAttributes.remove(jmxAttr);
+        }
+        this.limitedAttributes.clear();
+        this.beanReads = null;
+    }
+
+    /**
+     * Record a failure of an attribute. From its second failure in a row, the attribute is skipped for a check period,
+     * then for twice as long after each new failure, up to MAX_QUARANTINE_DELAY.
+     */
+    private void quarantine(JMXAttribute jmxAttr, Exception e) {
+        AttributeFailures failures = this.failingAttributes.get(jmxAttr);
+        if (failures == null) {
+            failures = new AttributeFailures();
+            this.failingAttributes.put(jmxAttr, failures);
+        }
+        failures.count++;
+        if (failures.count == 1) {
+            LOGGER.debug("Cannot get metrics for attribute: " + jmxAttr, e);
+            return;
+        }
+
+        long delay = Math.min(MAX_QUARANTINE_DELAY, (long) appConfig.getCheckPeriod() << Math.min(failures.count - 2, 16));
+        failures.retryTime = System.currentTimeMillis() + delay;
+        LOGGER.debug("Cannot generate metrics for attribute: " + jmxAttr + " " + failures.count + " times in a row. Skipping it for " + delay + " ms", e);
+        if (e instanceof InstanceNotFoundException) {
+            // The bean is gone, the next refresh of the bean list stops collecting it
+            this.beansToRematch.add(jmxAttr.getBeanName());
+        }
+    }
+
+    private List<JMXAttribute> getUnquarantinedAttributes(List<JMXAttribute> attributes) {
+        long now = System.currentTimeMillis();
+        ArrayList<JMXAttribute> unquarantinedAttributes = new ArrayList<JMXAttribute>(attributes.size());
+        for (JMXAttribute jmxAttr : attributes) {
+            AttributeFailures failures = this.failingAttributes.get(jmxAttr);
+            if (failures == null || failures.retryTime <= now) {
+                unquarantinedAttributes.add(jmxAttr);
+            }
+        }
+        return unquarantinedAttributes;
+    }
+
+    /**
+     * The attributes of a bean read with a single getAttributes call, along with the names to ask for.
+     */
+    private static final class BeanReads {
+        private final ObjectName beanName;
+        private final JMXAttribute[] attributes;
+        private final String[] attributeNames;
+
+        BeanReads(ObjectName beanName, List<JMXAttribute> attributes) {
+            this.beanName = beanName;
+            this.attributes = attributes.toArray(new JMXAttribute[attributes.size()]);
+            this.attributeNames = new String[this.attributes.length];
+            for (int i = 0; i < this.attributes.length; i++) {
+                this.attributeNames[i] = this.attributes[i].getAttributeName();
+            }
+        }
+    }
+
+    /**
+     * Group the attributes by bean, keeping the order of the list.
+     */
+    private static ArrayList<BeanReads> getBeanReads(List<JMXAttribute> attributes) {
+        LinkedHashMap<ObjectName, ArrayList<JMXAttribute>> attributesByBean = new LinkedHashMap<ObjectName, ArrayList<JMXAttribute>>();
+        for (JMXAttribute jmxAttr : attributes) {
+            ArrayList<JMXAttribute> beanAttributes = attributesByBean.get(jmxAttr.getBeanName());
+            if (beanAttributes == null) {
+                beanAttributes = new ArrayList<JMXAttribute>();
+                attributesByBean.put(jmxAttr.getBeanName(), beanAttributes);
+            }
+            beanAttributes.add(jmxAttr);
+        }
+
+        ArrayList<BeanReads> reads = new ArrayList<BeanReads>(attributesByBean.size());
+        for (Map.Entry<ObjectName, ArrayList<JMXAttribute>> entry : attributesByBean.entrySet()) {
+            reads.add(new BeanReads(entry.getKey(), entry.getValue()));
+        }
+        return reads;
+    }
+
+    /**
+     * Read the values of all the attributes of a bean with a single getAttributes call.
+     * Attributes left out of the answer are read one by one later on, so their errors are handled as usual.
+     *
+     * @return      false if the read timed out, in which case the attributes of the bean are skipped
+     *              for this collection rather than read one by one, each of them likely to time out too
+     */
+    private boolean prefetchValues(BeanReads reads) throws IOException {
+        ObjectName beanName = reads.beanName;
+        AttributeList values;
+        try {
+            values = connection.getAttributes(beanName, reads.attributeNames);
+        } catch (JMXCallTimeoutException e) {
+            LOGGER.warn("Cannot read attributes of bean: " + beanName + ": " + e.getMessage() + ". Skipping them for this collection");
+            return false;
+        } catch (IOException e) {
+            if (!connection.isAlive()) {
+                throw e;
+            }
+            LOGGER.debug("Cannot read attributes of bean: " + beanName + " at once. Reading them one by one", e);
+            return true;
+        } catch (Exception e) {
+            LOGGER.debug("Cannot read attributes of bean: " + beanName + " at once. Reading them one by one", e);
+            return true;
+        }
+
+        // The values come in the order of the names asked for, the attributes that couldn't be read left out:
+        // they are matched in a single pass, searching the whole list only for a server answering in another order
+        int next = 0;
+        for (int i = 0; i < reads.attributes.length; i++) {
+            int index = indexOf(values, reads.attributeNames[i], next);
+            if (index >= 0) {
+                reads.attributes[i].setPrefetchedValue(((Attribute) values.get(index)).getValue());
+                next = index + 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return      the index of the value of the given attribute, looked up from the given index first, or -1
+     */
+    private static int indexOf(AttributeList values, String attributeName, int from) {
+        int size = values.size();
+        for (int i = 0; i < size; i++) {
+            int index = (from + i) % size;
+            if (attributeName.equals(((Attribute) values.get(index)).getName())) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
     private void getMatchingAttributes() {
-        limitReached = false;
         Reporter reporter = appConfig.getReporter();
         String action = appConfig.getAction();
-        boolean metricReachedDisplayed = false;
-
-        this.matchingAttributes.clear();
-        this.failingAttributes.clear();
-        int metricsCount = 0;
 
+        resetMatchingAttributes();
         if (!action.equals(AppConfig.ACTION_COLLECT)) {
             reporter.displayInstanceName(this);
+            matchBeans(beans);
+            LOGGER.info("Found " + matchingAttributes.size() + " matching attributes");
+            return;
         }
 
+        // The beans are matched progressively so that the first attributes are collected without waiting
+        // for the whole discovery
+        this.pendingBeans.addAll(beans);
+        this.matchPendingBeans();
+    }
+
+    /**
+     * Match the pending beans in batches until the discovery time slice is over.
+     * The charts of each batch are defined as it is matched, so its attributes can be collected right away.
+     */
+    private void matchPendingBeans() {
+        long deadline = System.currentTimeMillis() + appConfig.getCheckPeriod() / 2;
+        while (!this.pendingBeans.isEmpty() && !this.limitReached) {
+            ArrayList<ObjectName> batch = new ArrayList<ObjectName>(DISCOVERY_BATCH_SIZE);
+            while (batch.size() < DISCOVERY_BATCH_SIZE && !this.pendingBeans.isEmpty()) {
+                batch.add(this.pendingBeans.poll());
+            }
+            matchBeans(batch);
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+        }
+
+        if (this.limitReached) {
+            // The beans left won't be collected anyway
+            this.pendingBeans.clear();
+        }
+        if (this.pendingBeans.isEmpty()) {
+            LOGGER.info("Found " + matchingAttributes.size() + " matching attributes");
+            this.savePlan();
+        } else {
+            LOGGER.info("Found " + matchingAttributes.size() + " matching attributes so far, "
+                    + this.pendingBeans.size() + " beans left to discover");
+        }
+    }
+
+    private void resetMatchingAttributes() {
+        limitReached = false;
+        this.pendingBeans.clear();
+        for (JMXAttribute jmxAttr : this.matchingAttributes) {
+            jmxAttr.release();
+        }
+        this.matchingAttributes.clear();
+        this.beanReads = null;
+        this.failingAttributes.clear();
+        this.deferredAttributes.clear();
+        this.undefinedChartAttributes.clear();
+        this.limitedAttributes.clear();
+        this.beansToRematch.clear();
+        this.metricsCount = 0;
+        this.metricReachedDisplayed = false;
+    }
+
+    /**
+     * Match the attributes of the given beans against the configuration, adding the matching ones
+     * to the attributes to collect.
+     */
+    private void matchBeans(Collection<ObjectName> beans) {
+        String action = appConfig.getAction();
+        // Listing the non matching attributes requires the attributes of every bean
+        boolean listNonMatching = action.equals(AppConfig.ACTION_LIST_EVERYTHING) || action.equals(AppConfig.ACTION_LIST_NOT_MATCHING);
+
         for (ObjectName beanName : beans) {
             if (limitReached) {
                 LOGGER.debug("Limit reached");
@@ -196,180 +751,571 @@ public class Instance {
                     break;
                 }
             }
-            MBeanAttributeInfo[] attributeInfos;
+            addMatchingAttributes(matchBeanAttributes(beanName, beanClassNames.get(beanName), listNonMatching));
+        }
+        // Sort the attributes by decreasing priority, the sort is stable so equal priorities keep the conf order
+        Collections.sort(this.matchingAttributes, PRIORITY_ORDER);
+    }
 
-            try {
-                // Get all the attributes for bean_name
-                LOGGER.debug("Getting attributes for bean: " + beanName);
-                attributeInfos = connection.getAttributesForBean(beanName);
-            } catch (Exception e) {
-                LOGGER.warn("Cannot get bean attributes " + e.getMessage());
+    /**
+     * Match the attributes of a bean against the configuration. This doesn't change the state of the instance,
+     * so that beans can be matched in the background.
+     *
+     * @param className         the class name of the bean, null if unknown
+     * @param listNonMatching   whether to return the attributes matching no configuration too
+     *
+     * @return                  the attributes of the bean, with their matching configuration set
+     */
+    private ArrayList<JMXAttribute> matchBeanAttributes(ObjectName beanName, String className, boolean listNonMatching) {
+        ArrayList<JMXAttribute> attributes = new ArrayList<JMXAttribute>();
+
+        // Match the bean first so that the beans matching no configuration are discarded
+        // before fetching their attributes
+        BeanDescriptor bean = new BeanDescriptor(beanName, instanceName, tags, cassandraAliasing);
+        LinkedList<Configuration> beanConfigurations = getBeanConfigurations(bean);
+        if (beanConfigurations.isEmpty() && !listNonMatching) {
+            return attributes;
+        }
+        MBeanAttributeInfo[] attributeInfos;
+
+        try {
+            // Get all the attributes for bean_name
+            LOGGER.debug("Getting attributes for bean: " + beanName);
+            attributeInfos = connection.getAttributesForBean(beanName, className);
+        } catch (Exception e) {
+            LOGGER.warn("Cannot get bean attributes " + e.getMessage());
+            return attributes;
+        }
+
+        for (MBeanAttributeInfo attributeInfo : attributeInfos) {
+            JMXAttribute jmxAttribute = createAttribute(attributeInfo, bean);
+            if (jmxAttribute == null) {
                 continue;
             }
 
-            for (MBeanAttributeInfo attributeInfo : attributeInfos) {
-
-                if (metricsCount >= maxReturnedMetrics) {
-                    limitReached = true;
-                    if (action.equals(AppConfig.ACTION_COLLECT)) {
-                        LOGGER.warn("Maximum number of metrics reached.");
+            // For each attribute we try it with each configuration to see if there is one that matches
+            // If so, we store the attribute so metrics will be collected from it. Otherwise we discard it.
+            for (Configuration conf : beanConfigurations) {
+                try {
+                    if (jmxAttribute.matchAttributeFilters(conf)) {
+                        jmxAttribute.setMatchingConf(conf);
                         break;
-                    } else if (!metricReachedDisplayed &&
-                            !action.equals(AppConfig.ACTION_LIST_COLLECTED) &&
-                            !action.equals(AppConfig.ACTION_LIST_NOT_MATCHING)) {
-                        reporter.displayMetricReached();
-                        metricReachedDisplayed = true;
                     }
+                } catch (Exception e) {
+                    LOGGER.error("Error while trying to match attributeInfo configuration with the Attribute: " + beanName + " : " + attributeInfo, e);
                 }
-                JMXAttribute jmxAttribute;
-                String attributeType = attributeInfo.getType();
-                attributeType= JMXUtil.getReadableClassName(attributeType);
-                if (SIMPLE_TYPES.contains(attributeType)) {
-                    LOGGER.debug(ATTRIBUTE + beanName + " : " + attributeInfo + " has attributeInfo simple type");
-                    jmxAttribute = new JMXSimpleAttribute(attributeInfo, beanName, instanceName, connection, tags, cassandraAliasing);
-                } else if (COMPOSED_TYPES.contains(attributeType)) {
-                    LOGGER.debug(ATTRIBUTE + beanName + " : " + attributeInfo + " has attributeInfo complex type");
-                    jmxAttribute = new JMXComplexAttribute(attributeInfo, beanName, instanceName, connection, tags);
-                    LOGGER.debug(ATTRIBUTE + beanName + " : " + attributeInfo + " has attributeInfo complex type");
-                }
-                else {
-                    try {
-                        LOGGER.debug(ATTRIBUTE + beanName + " : " + attributeInfo + " has an unsupported type: " + attributeType);
-                    } catch (NullPointerException e) {
-                        LOGGER.warn("Caught unexpected NullPointerException");
-                    }
-                    continue;
+            }
+            if (jmxAttribute.getMatchingConf() != null || listNonMatching) {
+                attributes.add(jmxAttribute);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Add the matching attributes of a bean to the attributes to collect, up to the maximum number of metrics,
+     * and define their charts.
+     */
+    private void addMatchingAttributes(List<JMXAttribute> attributes) {
+        Reporter reporter = appConfig.getReporter();
+        String action = appConfig.getAction();
+        this.beanReads = null;
+
+        for (JMXAttribute jmxAttribute : attributes) {
+            if (metricsCount >= maxReturnedMetrics) {
+                limitReached = true;
+                if (action.equals(AppConfig.ACTION_COLLECT)) {
+                    LOGGER.warn("Maximum number of metrics reached.");
+                    break;
+                } else if (!metricReachedDisplayed &&
+                        !action.equals(AppConfig.ACTION_LIST_COLLECTED) &&
+                        !action.equals(AppConfig.ACTION_LIST_NOT_MATCHING)) {
+                    reporter.displayMetricReached();
+                    metricReachedDisplayed = true;
                 }
+            }
 
-                // For each attribute we try it with each configuration to see if there is one that matches
-                // If so, we store the attribute so metrics will be collected from it. Otherwise we discard it.
-                for (Configuration conf : configurationList) {
-                    try {
-                        if (jmxAttribute.match(conf)) {
-                            jmxAttribute.setMatchingConf(conf);
-                            metricsCount += jmxAttribute.getMetricsCount();
-                            this.matchingAttributes.add(jmxAttribute);
-
-                            String scope = "";
-                            if (beanName.getKeyProperty("scope")!= null){
-                                scope = "." + beanName.getKeyProperty("scope").toLowerCase();
-                            }
-
-                            String name= "";
-                            if (beanName.getKeyProperty("name")!= null){
-                                name = "." + beanName.getKeyProperty("name").toLowerCase();
-                            }
-
-                            String type = "";
-                            if (beanName.getKeyProperty("type")!= null){
-                                type = "." + beanName.getKeyProperty("type").toLowerCase();
-                            }
-
-                            String index = "";
-                            if (beanName.getKeyProperty("index")!= null){
-                                index= "." + beanName.getKeyProperty("index").toLowerCase();
-                            }
-
-                            String trimmedConcat = (type + scope + index + name + ".").substring(1,(type + scope + index + name).length());
-
-                            String domain= beanName.getDomain();
-
-                            /*
-                            String[] domainArray = domain.split("\\.") ;
-                            domain= String.join(".",Arrays.copyOfRange(domainArray,2,domainArray.length));
-                            */
-
-                            //this.getMetrics();
-                            //System.out.println("tags: "+ Arrays.toString(jmxAttribute.getTags()));
-                            //System.out.println("kp list: "+ (beanName.getKeyPropertyListString()));
-
-                            String chartType = "";
-                            if (jmxAttribute.getClass().toString().contains("JMXComplexAttribute")){
-                                chartType = " stacked";
-                            }
-                            String attributeName  = "." + jmxAttribute.getAttribute().getName().toLowerCase();
-                            attributeName = attributeName.replace(".value","");
-                            //System.out.println("name" + attributeName);
-                            //System.out.println("name" + name);
-                            //CHART definition, chart per bean.
-                            //System.out.println("CHART cassandra."+ beanName.getKeyProperty("type").toLowerCase()+ "." +beanName.getKeyProperty("scope").toLowerCase() + "-cassandra." + beanName.getKeyProperty("name").toLowerCase()+ "." +jmxAttribute.getAttribute().getName().toLowerCase()+ " " + beanName.getKeyProperty("scope").toLowerCase() + "." +beanName.getKeyProperty("name").toLowerCase()+  " cassandra."+ beanName.getKeyProperty("name").toLowerCase()+ "." +jmxAttribute.getAttribute().getName().toLowerCase()+ " " +attributeType + " cassandra."+ beanName.getKeyProperty("type").toLowerCase()+ "." +beanName.getKeyProperty("scope").toLowerCase() +  " \"DataStax Enterprise\"");
-                            System.out.println("CHART "+ domain+ type +
-                                    scope +
-                                    "-"+ domain + index +
-                                        name +
-                                        attributeName+
-                                    " "+ trimmedConcat +
-                                        attributeName +
-                                    " "+ domain + index + name
-                                        +attributeName+
-                                    " " +attributeType + 
-                                    " "+ domain + type
-                                        + scope +
-                                    " " + domain +
-                                    chartType);
-
-                            //System.out.println("class: "+jmxAttribute.getClass());
-                            //System.out.println("mc: "+ metricsCount);
-                            //System.out.println("mc: "+ jmxAttribute.getMetricsCount());
-
-                            if (jmxAttribute.getClass().toString().contains("JMXComplexAttribute")){
-                                int mcCount = jmxAttribute.getMetricsCount();
-                                for (int i=0; i<mcCount; i++){
-
-                                    //Define DIMENSION -- attributes == dimensions
-                                    System.out.println("DIMENSION "+ domain + index + name +  attributeName + "." + i+ " " +  attributeName.replace(".","") + "." + i);
-                                }
-                            } else{
-                                System.out.println("DIMENSION "+ domain + index + name + attributeName + " " +  attributeName.replace(".",""));
-                            }
-
-
-                            if (action.equals(AppConfig.ACTION_LIST_EVERYTHING) ||
-                                    action.equals(AppConfig.ACTION_LIST_MATCHING) ||
-                                    action.equals(AppConfig.ACTION_LIST_COLLECTED) && !limitReached ||
-                                    action.equals(AppConfig.ACTION_LIST_LIMITED) && limitReached) {
-                                reporter.displayMatchingAttributeName(jmxAttribute, metricsCount, maxReturnedMetrics);
-                            }
-                            break;
-                        }
-                    } catch (Exception e) {
-                        LOGGER.error("Error while trying to match attributeInfo configuration with the Attribute: " + beanName + " : " + attributeInfo, e);
-                    }
+            if (jmxAttribute.getMatchingConf() == null) {
+                reporter.displayNonMatchingAttributeName(jmxAttribute);
+                continue;
+            }
+
+            metricsCount += jmxAttribute.getMetricsCount();
+            this.matchingAttributes.add(jmxAttribute);
+
+            // The charts of the attributes whose size isn't known yet are defined after their first read
+            if (jmxAttribute.isMetricsCountKnown()) {
+                printChartDefinition(jmxAttribute);
+            } else {
+                this.undefinedChartAttributes.add(jmxAttribute);
+            }
+
+            if (action.equals(AppConfig.ACTION_LIST_EVERYTHING) ||
+                    action.equals(AppConfig.ACTION_LIST_MATCHING) ||
+                    action.equals(AppConfig.ACTION_LIST_COLLECTED) && !limitReached ||
+                    action.equals(AppConfig.ACTION_LIST_LIMITED) && limitReached) {
+                reporter.displayMatchingAttributeName(jmxAttribute, metricsCount, maxReturnedMetrics);
+            }
+        }
+    }
+
+    /**
+     * @return      the attribute to collect, or null if its type is not supported
+     */
+    private JMXAttribute createAttribute(MBeanAttributeInfo attributeInfo, BeanDescriptor bean) {
+        String attributeType = JMXUtil.getReadableClassName(attributeInfo.getType());
+        if (SIMPLE_TYPES.contains(attributeType)) {
+            LOGGER.debug(ATTRIBUTE + bean.getBeanName() + " : " + attributeInfo + " has attributeInfo simple type");
+            return new JMXSimpleAttribute(attributeInfo, bean, connection, attributeRegistry, cassandraAliasing);
+        } else if (COMPOSED_TYPES.contains(attributeType)) {
+            LOGGER.debug(ATTRIBUTE + bean.getBeanName() + " : " + attributeInfo + " has attributeInfo complex type");
+            return new JMXComplexAttribute(attributeInfo, bean, connection, attributeRegistry);
+        }
+        LOGGER.debug(ATTRIBUTE + bean.getBeanName() + " : " + attributeInfo + " has an unsupported type: " + attributeType);
+        return null;
+    }
+
+    /**
+     * Load the collection plan persisted by a previous run, if it is still valid, and reconcile it
+     * with the beans of the server in the background.
+     *
+     * @return      true if the plan has been loaded
+     */
+    private boolean loadPlan() {
+        if (this.planFile == null || !this.planFile.exists() || !appConfig.getAction().equals(AppConfig.ACTION_COLLECT)) {
+            return false;
+        }
+
+        try {
+            CollectionPlan plan = CollectionPlan.load(this.planFile);
+            if (!getConfigurationHash().equals(plan.getConfigurationHash())) {
+                LOGGER.info("The configuration of " + this + " changed since its collection plan was saved, discovering the beans");
+                return false;
+            }
+            this.beanCount = connection.getMBeanCount();
+            if (this.beanCount != plan.getBeanCount()) {
+                LOGGER.info("The beans of " + this + " changed since its collection plan was saved, discovering the beans");
+                return false;
+            }
+
+            this.resetMatchingAttributes();
+            this.beans = new HashSet<ObjectName>(plan.getBeans().keySet());
+            this.beanClassNames = new HashMap<ObjectName, String>(plan.getBeans());
+            HashMap<ObjectName, BeanDescriptor> planBeans = new HashMap<ObjectName, BeanDescriptor>();
+            for (CollectionPlan.Entry entry : plan.getAttributes()) {
+                MBeanAttributeInfo attributeInfo = new MBeanAttributeInfo(entry.getAttributeName(), entry.getAttributeType(),
+                        null, true, false, false);
+                BeanDescriptor bean = planBeans.get(entry.getBeanName());
+                if (bean == null) {
+                    bean = new BeanDescriptor(entry.getBeanName(), instanceName, tags, cassandraAliasing);
+                    planBeans.put(entry.getBeanName(), bean);
                 }
-                if (jmxAttribute.getMatchingConf() == null
-                        && (action.equals(AppConfig.ACTION_LIST_EVERYTHING)
-                                || action.equals(AppConfig.ACTION_LIST_NOT_MATCHING))) {
-                    reporter.displayNonMatchingAttributeName(jmxAttribute);
+                JMXAttribute jmxAttribute = createAttribute(attributeInfo, bean);
+                Configuration conf = this.configurationList.get(entry.getConfigurationIndex());
+                if (jmxAttribute == null || !jmxAttribute.match(conf)) {
+                    throw new IOException("Attribute " + entry.getAttributeName() + " of bean " + entry.getBeanName()
+                            + " doesn't match its configuration");
                 }
+                jmxAttribute.setMatchingConf(conf);
+                this.metricsCount += jmxAttribute.getMetricsCount();
+                this.matchingAttributes.add(jmxAttribute);
+                if (jmxAttribute.isMetricsCountKnown()) {
+                    printChartDefinition(jmxAttribute);
+                } else {
+                    this.undefinedChartAttributes.add(jmxAttribute);
+                }
+            }
+            this.limitReached = this.metricsCount >= this.maxReturnedMetrics;
+            this.lastRefreshTime = System.currentTimeMillis();
+        } catch (Exception e) {
+            LOGGER.warn("Cannot load the collection plan of " + this + " from " + this.planFile + ": " + e.getMessage());
+            return false;
+        }
+        LOGGER.info("Loaded " + this.matchingAttributes.size() + " matching attributes of " + this + " from " + this.planFile);
+
+        // Discover the beans again in the background, the differences are applied by the next collection
+        this.startDiscovery();
+        return true;
+    }
+
+    /**
+     * List the beans in the background, and match the attributes of the beans that are not known yet.
+     */
+    private void startDiscovery() {
+        // The bean notifications received so far are superseded by the new list
+        this.beanNotifications.clear();
+        this.beanNotificationsLost = false;
+        this.lastRefreshTime = System.currentTimeMillis();
+
+        final BeanDiscovery discovery = new BeanDiscovery(new HashSet<ObjectName>(this.beans));
+        this.runningDiscovery = discovery;
+        discovery.future = getDiscoveryExecutor(appConfig.getCollectionThreads()).submit(new Runnable() {
+            public void run() {
+                discover(discovery);
+            }
+        });
+    }
+
+    /**
+     * Stop the background discovery, if any. Its results won't be applied.
+     */
+    private void cancelDiscovery() {
+        if (this.runningDiscovery != null) {
+            this.runningDiscovery.future.cancel(true);
+            this.runningDiscovery = null;
+        }
+    }
+
+    private static synchronized ExecutorService getDiscoveryExecutor(int threads) {
+        if (discoveryExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), DISCOVERY_THREAD_FACTORY);
+            executor.allowCoreThreadTimeOut(true);
+            discoveryExecutor = executor;
+        }
+        return discoveryExecutor;
+    }
 
+    private void discover(BeanDiscovery discovery) {
+        try {
+            if (this.planFile != null) {
+                discovery.beanCount = connection.getMBeanCount();
             }
+            discovery.beans = listBeans();
+            for (Map.Entry<ObjectName, String> bean : discovery.beans.entrySet()) {
+                if (!discovery.knownBeans.contains(bean.getKey())) {
+                    discovery.matchedAttributes.put(bean.getKey(), matchBeanAttributes(bean.getKey(), bean.getValue(), false));
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Cannot refresh the bean list of " + this + ": " + e.getMessage());
+            discovery.failed = true;
+        } finally {
+            discovery.done = true;
+        }
+    }
+
+    /**
+     * Swap the beans found by a background discovery in: stop collecting the beans that are gone
+     * and start collecting the attributes matched on the new ones.
+     */
+    private void applyDiscovery(BeanDiscovery discovery) {
+        if (discovery.failed) {
+            // Try again in the next collection
+            this.beanNotificationsLost = true;
+            return;
+        }
+
+        // The notifications processed in the meantime are more recent than the listing
+        LinkedHashMap<ObjectName, String> discoveredBeans = discovery.beans;
+        for (ObjectName beanName : discovery.notifiedBeans) {
+            if (this.beans.contains(beanName)) {
+                discoveredBeans.put(beanName, this.beanClassNames.get(beanName));
+            } else {
+                discoveredBeans.remove(beanName);
+            }
+        }
+
+        Set<ObjectName> previousBeans = this.beans;
+        this.beans = new HashSet<ObjectName>(discoveredBeans.keySet());
+        this.beanClassNames = new HashMap<ObjectName, String>(discoveredBeans);
+        if (discovery.beanCount >= 0) {
+            this.beanCount = discovery.beanCount;
+        }
+        if (this.limitReached) {
+            // Some beans may not have been matched at all, start over
+            this.getMatchingAttributes();
+            return;
+        }
+
+        // Beans whose attributes were removed for failing are matched again
+        HashSet<ObjectName> removedBeans = new HashSet<ObjectName>(previousBeans);
+        removedBeans.removeAll(this.beans);
+        removedBeans.addAll(this.beansToRematch);
+        if (!removedBeans.isEmpty()) {
+            removeBeans(removedBeans);
+        }
+
+        int addedBeans = 0;
+        for (ObjectName beanName : this.beans) {
+            if (previousBeans.contains(beanName) && !this.beansToRematch.contains(beanName)) {
+                continue;
+            }
+            addedBeans++;
+            ArrayList<JMXAttribute> attributes = discovery.matchedAttributes.get(beanName);
+            if (attributes != null && !this.limitReached) {
+                addMatchingAttributes(attributes);
+            } else {
+                // Not matched in the background, it is matched along with the pending beans
+                this.pendingBeans.add(beanName);
+            }
+        }
+        this.beansToRematch.clear();
+        Collections.sort(this.matchingAttributes, PRIORITY_ORDER);
+
+        LOGGER.info("Bean list refreshed: " + addedBeans + " beans matched, " + removedBeans.size()
+                + " beans retired, " + matchingAttributes.size() + " matching attributes");
+        this.savePlan();
+    }
+
+    private void savePlan() {
+        if (this.planFile == null || !appConfig.getAction().equals(AppConfig.ACTION_COLLECT) || !this.pendingBeans.isEmpty()) {
+            return;
+        }
+
+        ArrayList<CollectionPlan.Entry> attributes = new ArrayList<CollectionPlan.Entry>();
+        for (JMXAttribute jmxAttribute : this.matchingAttributes) {
+            attributes.add(new CollectionPlan.Entry(jmxAttribute.getBeanName(), jmxAttribute.getAttribute().getName(),
+                    jmxAttribute.getAttribute().getType(), this.configurationList.indexOf(jmxAttribute.getMatchingConf())));
+        }
+        LinkedHashMap<ObjectName, String> beans = new LinkedHashMap<ObjectName, String>();
+        for (ObjectName beanName : this.beans) {
+            beans.put(beanName, this.beanClassNames.get(beanName));
+        }
+
+        try {
+            this.planFile.getParentFile().mkdirs();
+            new CollectionPlan(getConfigurationHash(), this.beanCount, beans, attributes).save(this.planFile);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot save the collection plan of " + this + " to " + this.planFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return      a hash of the configuration of the instance, a plan saved with another configuration is not valid
+     */
+    private String getConfigurationHash() {
+        return Integer.toHexString((String.valueOf(this.yaml) + this.initConfig).hashCode());
+    }
+
+    /**
+     * Print the netdata definition of the chart of an attribute, with a dimension per metric.
+     */
+    private static void printChartDefinition(JMXAttribute jmxAttribute) {
+        BeanDescriptor bean = jmxAttribute.getBean();
+        String attributeType = JMXUtil.getReadableClassName(jmxAttribute.getAttribute().getType());
+
+        String chartType = "";
+        if (jmxAttribute.getClass().toString().contains("JMXComplexAttribute")){
+            chartType = " stacked";
+        }
+        String attributeName  = "." + jmxAttribute.getAttribute().getName().toLowerCase();
+        attributeName = attributeName.replace(".value","");
+        //System.out.println("name" + attributeName);
+        //System.out.println("name" + name);
+        //CHART definition, chart per bean.
+        //System.out.println("CHART cassandra."+ beanName.getKeyProperty("type").toLowerCase()+ "." +beanName.getKeyProperty("scope").toLowerCase() + "-cassandra." + beanName.getKeyProperty("name").toLowerCase()+ "." +jmxAttribute.getAttribute().getName().toLowerCase()+ " " + beanName.getKeyProperty("scope").toLowerCase() + "." +beanName.getKeyProperty("name").toLowerCase()+  " cassandra."+ beanName.getKeyProperty("name").toLowerCase()+ "." +jmxAttribute.getAttribute().getName().toLowerCase()+ " " +attributeType + " cassandra."+ beanName.getKeyProperty("type").toLowerCase()+ "." +beanName.getKeyProperty("scope").toLowerCase() +  " \"DataStax Enterprise\"");
+        // Chart definitions are written in one go so they don't interleave with the ones
+        // of instances discovered concurrently
+        StringBuilder chartDefinition = new StringBuilder();
+        chartDefinition.append("CHART " + bean.getChartIdPrefix() + attributeName +
+                " " + bean.getChartNamePrefix() + attributeName +
+                " " + bean.getChartTitlePrefix() + attributeName +
+                " " + attributeType +
+                " " + bean.getChartFamily() +
+                " " + bean.getDomain() +
+                chartType).append('\n');
+
+        //System.out.println("class: "+jmxAttribute.getClass());
+        //System.out.println("mc: "+ metricsCount);
+        //System.out.println("mc: "+ jmxAttribute.getMetricsCount());
+
+        if (jmxAttribute.getClass().toString().contains("JMXComplexAttribute")){
+            int mcCount = jmxAttribute.getMetricsCount();
+            for (int i=0; i<mcCount; i++){
+
+                //Define DIMENSION -- attributes == dimensions
+                chartDefinition.append("DIMENSION "+ bean.getChartTitlePrefix() +  attributeName + "." + i+ " " +  attributeName.replace(".","") + "." + i).append('\n');
+            }
+        } else{
+            chartDefinition.append("DIMENSION "+ bean.getChartTitlePrefix() + attributeName + " " +  attributeName.replace(".","")).append('\n');
+        }
+        System.out.print(chartDefinition);
+    }
+
+    /**
+     * Evaluate the domain and bean filters of the configurations once for a bean.
+     *
+     * @return      the configurations whose bean filters match the bean, in the configuration order
+     */
+    private LinkedList<Configuration> getBeanConfigurations(BeanDescriptor bean) {
+        try {
+            return configurationIndex.getBeanConfigurations(bean.getDomain(), bean.getBeanStringName(), bean.getParameters());
+        } catch (Exception e) {
+            LOGGER.error("Error while trying to match the configuration with the bean: " + bean.getBeanName(), e);
+            return new LinkedList<Configuration>();
+        }
+    }
+
+    /**
+     * Stop collecting the attributes of the given beans.
+     */
+    private void removeBeans(Set<ObjectName> beans) {
+        this.beanReads = null;
+        Iterator<JMXAttribute> it = this.matchingAttributes.iterator();
+        while (it.hasNext()) {
+            JMXAttribute jmxAttr = it.next();
+            if (beans.contains(jmxAttr.getBeanName())) {
+                it.remove();
+                jmxAttr.release();
+                this.failingAttributes.remove(jmxAttr);
+                this.deferredAttributes.remove(jmxAttr);
+                this.undefinedChartAttributes.remove(jmxAttr);
+                this.metricsCount -= jmxAttr.getMetricsCount();
+            }
+        }
+        this.pendingBeans.removeAll(beans);
+        if (this.metricsCount < this.maxReturnedMetrics) {
+            this.limitReached = false;
+        }
+    }
+
+    /**
+     * Subscribe to the registrations and unregistrations of beans, so that the beans appearing
+     * or disappearing are matched as soon as the next collection rather than at the next full refresh.
+     */
+    private void subscribeToBeanNotifications() {
+        try {
+            connection.addBeanRegistrationListener(this.beanRegistrationListener);
+            this.subscribedToBeanNotifications = true;
+        } catch (Exception e) {
+            LOGGER.warn("Cannot subscribe to the bean registrations of " + this + ", relying on periodic bean refreshes: " + e.getMessage());
+            return;
+        }
+
+        this.beanScopePatterns = new LinkedList<ObjectName>();
+        try {
+            for (String scope : getBeansScopes()) {
+                this.beanScopePatterns.add(new ObjectName(scope));
+            }
+        } catch (Exception e) {
+            // Consider all the beans
+            this.beanScopePatterns.clear();
+        }
+    }
+
+    private boolean isInBeanScopes(ObjectName beanName) {
+        if (this.beanScopePatterns.isEmpty()) {
+            return true;
+        }
+        for (ObjectName scope : this.beanScopePatterns) {
+            if (scope.apply(beanName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Apply the bean registrations and unregistrations received since the previous collection:
+     * only the beans that actually appeared are matched, the attributes of the ones that disappeared are dropped.
+     */
+    private void processBeanNotifications() {
+        LinkedHashSet<ObjectName> addedBeans = new LinkedHashSet<ObjectName>();
+        HashSet<ObjectName> removedBeans = new HashSet<ObjectName>();
+
+        MBeanServerNotification notification;
+        while ((notification = this.beanNotifications.poll()) != null) {
+            ObjectName beanName = notification.getMBeanName();
+            if (!isInBeanScopes(beanName)) {
+                continue;
+            }
+            if (this.runningDiscovery != null) {
+                this.runningDiscovery.notifiedBeans.add(beanName);
+            }
+            if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                if (this.beans.add(beanName)) {
+                    addedBeans.add(beanName);
+                }
+            } else if (this.beans.remove(beanName)) {
+                this.beanClassNames.remove(beanName);
+                if (!addedBeans.remove(beanName)) {
+                    removedBeans.add(beanName);
+                }
+            }
+        }
+
+        if (!removedBeans.isEmpty()) {
+            LOGGER.info(removedBeans.size() + " beans unregistered from " + this);
+            removeBeans(removedBeans);
+        }
+        if (!addedBeans.isEmpty()) {
+            LOGGER.info(addedBeans.size() + " beans registered on " + this);
+            matchBeans(addedBeans);
         }
-        LOGGER.info("Found " + matchingAttributes.size() + " matching attributes");
     }
 
     public LinkedList<String> getBeansScopes(){
-        if(this.beanScopes == null){
-            this.beanScopes = Configuration.getGreatestCommonScopes(configurationList);
+        // Computed by the collecting thread or a background discovery, whichever needs them first
+        LinkedList<String> beanScopes = this.beanScopes;
+        if(beanScopes == null){
+            beanScopes = Configuration.getBeanScopes(configurationList);
+            this.beanScopes = beanScopes;
         }
-        return this.beanScopes;
+        return beanScopes;
     }
 
 
+    /**
+     * Query the beans of a scope, filtered by the MBean server with the query built from the configuration.
+     * The query is only an optimization: it is dropped if the server cannot evaluate it.
+     */
+    private Set<ObjectInstance> queryBeans(ObjectName scope, QueryExp beanQuery) throws IOException {
+        if (beanQuery != null && !beanQueryUnsupported) {
+            try {
+                return connection.queryMBeans(scope, beanQuery);
+            } catch (JMXCallTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                if (!connection.isAlive()) {
+                    throw e;
+                }
+                LOGGER.warn("Unable to filter the beans on the server side for " + this + ", filtering them locally: " + e.getMessage());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to filter the beans on the server side for " + this + ", filtering them locally: " + e.getMessage());
+            }
+            beanQueryUnsupported = true;
+        }
+        return connection.queryMBeans(scope);
+    }
+
     /**
      * Query and refresh the instance's list of beans.
      * Limit the query scope when possible on certain actions, and fallback if necessary.
      */
     private void refreshBeansList() throws IOException {
-        this.beans = new HashSet<ObjectName>();
+        // The bean notifications received so far are superseded by the new list
+        this.beanNotifications.clear();
+        this.beanNotificationsLost = false;
+        // So is a background discovery
+        this.cancelDiscovery();
+        if (this.planFile != null) {
+            this.beanCount = connection.getMBeanCount();
+        }
+        LinkedHashMap<ObjectName, String> beans = listBeans();
+        this.beans = new HashSet<ObjectName>(beans.keySet());
+        this.beanClassNames = new HashMap<ObjectName, String>(beans);
+        this.lastRefreshTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Query the beans of the scopes of the configuration. This doesn't change the state of the instance,
+     * so that the beans can be listed in the background.
+     *
+     * @return      the class names of the beans, by bean name
+     */
+    private LinkedHashMap<ObjectName, String> listBeans() throws IOException {
+        LinkedHashMap<ObjectName, String> beans = new LinkedHashMap<ObjectName, String>();
         String action = appConfig.getAction();
         Boolean limitQueryScopes = !action.equals(AppConfig.ACTION_LIST_EVERYTHING) && !action.equals(AppConfig.ACTION_LIST_EVERYTHING);
 
         if (limitQueryScopes) {
             try {
                 LinkedList<String> beanScopes = getBeansScopes();
+                QueryExp beanQuery = Configuration.getBeanQuery(configurationList);
                 for (String scope : beanScopes) {
                     ObjectName name = new ObjectName(scope);
-                    this.beans.addAll(connection.queryNames(name));
+                    addBeans(beans, queryBeans(name, beanQuery));
                 }
             }
             catch (Exception e) {
@@ -377,8 +1323,16 @@ public class Instance {
             }
         }
 
-        this.beans = (this.beans.isEmpty()) ? connection.queryNames(null): this.beans;
-        this.lastRefreshTime = System.currentTimeMillis();
+        if (beans.isEmpty()) {
+            addBeans(beans, connection.queryMBeans(null));
+        }
+        return beans;
+    }
+
+    private static void addBeans(Map<ObjectName, String> beans, Set<ObjectInstance> objectInstances) {
+        for (ObjectInstance bean : objectInstances) {
+            beans.put(bean.getObjectName(), bean.getClassName());
+        }
     }
 
     public String[] getServiceCheckTags() {
@@ -415,9 +1369,34 @@ public class Instance {
         return this.limitReached;
     }
 
+    /**
+     * @return      true while some beans are still to be matched
+     */
+    public boolean isDiscovering() {
+        return !this.pendingBeans.isEmpty();
+    }
+
+    /**
+     * Forget the samples the rates are computed from, when the monitored JVM restarted.
+     */
+    public void clearRates() {
+        this.attributeRegistry.clearRates();
+    }
+
     public void cleanUp() {
         this.appConfig = null;
+        this.disconnect();
+    }
+
+    /**
+     * Close the connection of the instance, keeping its plan so that it can be rebound to a new connection.
+     */
+    public void disconnect() {
+        this.cancelDiscovery();
         if (connection != null) {
+            if (this.subscribedToBeanNotifications) {
+                connection.removeBeanRegistrationListener(this.beanRegistrationListener);
+            }
             connection.closeConnector();
         }
     }
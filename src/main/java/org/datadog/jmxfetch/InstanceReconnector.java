@@ -0,0 +1,229 @@
+package org.datadog.jmxfetch;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.InstanceNotFoundException;
+import javax.security.auth.login.FailedLoginException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reconnects broken instances in the background so that a node that is down, and whose connection
+ * attempts block until they time out, doesn't hold back the collection of the healthy ones.
+ *
+ * Failed attempts are retried with an exponential backoff and some jitter. The main loop polls the
+ * reconnection of each broken instance and swaps the new instance in once it is connected.
+ *
+ * An instance that lost its connection is rebound to a new connection with its plan, its matching attributes,
+ * kept as is. It is only replaced by a brand new instance, which discovers the beans again, if a bean
+ * of its plan is gone or if it broke for another reason.
+ */
+class InstanceReconnector {
+    private final static Logger LOGGER = Logger.getLogger(InstanceReconnector.class.getName());
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    private final AppConfig appConfig;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ConcurrentHashMap<Instance, Reconnection> reconnections = new ConcurrentHashMap<Instance, Reconnection>();
+
+    InstanceReconnector(AppConfig appConfig) {
+        this.appConfig = appConfig;
+        this.executor = new ScheduledThreadPoolExecutor(appConfig.getCollectionThreads(), new ReconnectorThreadFactory());
+        this.executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * State of the reconnection of a broken instance, updated by the reconnector threads.
+     */
+    static class Reconnection {
+        private final Instance brokenInstance;
+        private final boolean rebind;
+        private volatile int attempts;
+        private volatile String lastError;
+        private volatile long nextRetryTime;
+        private volatile Instance reconnectedInstance;
+        private volatile boolean ratesKept;
+        private volatile boolean cancelled;
+
+        private Reconnection(Instance brokenInstance, boolean rebind) {
+            this.brokenInstance = brokenInstance;
+            this.rebind = rebind;
+            this.nextRetryTime = System.currentTimeMillis();
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+
+        String getLastError() {
+            return lastError;
+        }
+
+        long getNextRetryTime() {
+            return nextRetryTime;
+        }
+
+        /**
+         * @return      the new, connected, instance or null if the instance is not reconnected yet
+         */
+        Instance getReconnectedInstance() {
+            return reconnectedInstance;
+        }
+
+        /**
+         * @return      true if the instance was rebound to the same JVM, whose rates can be carried on
+         */
+        boolean areRatesKept() {
+            return ratesKept;
+        }
+    }
+
+    /**
+     * Start reconnecting a broken instance. The first attempt is made right away.
+     *
+     * @param rebind    try to rebind the plan of the instance to a new connection first, for an instance
+     *                  that broke because of its connection
+     */
+    Reconnection reconnect(Instance brokenInstance, boolean rebind) {
+        Reconnection reconnection = new Reconnection(brokenInstance, rebind);
+        Reconnection existing = reconnections.putIfAbsent(brokenInstance, reconnection);
+        if (existing != null) {
+            return existing;
+        }
+        schedule(reconnection, 0);
+        return reconnection;
+    }
+
+    /**
+     * @return      the reconnection of a broken instance, or null if it's not being reconnected
+     */
+    Reconnection getReconnection(Instance brokenInstance) {
+        return reconnections.get(brokenInstance);
+    }
+
+    /**
+     * Stop tracking the reconnection of an instance, cancelling its pending attempts.
+     */
+    void forget(Instance brokenInstance) {
+        Reconnection reconnection = reconnections.remove(brokenInstance);
+        if (reconnection != null) {
+            reconnection.cancelled = true;
+        }
+    }
+
+    void cancelAll() {
+        for (Instance brokenInstance : reconnections.keySet()) {
+            forget(brokenInstance);
+        }
+    }
+
+    private void schedule(final Reconnection reconnection, long delay) {
+        reconnection.nextRetryTime = System.currentTimeMillis() + delay;
+        executor.schedule(new Runnable() {
+            public void run() {
+                attempt(reconnection);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(Reconnection reconnection) {
+        if (reconnection.cancelled) {
+            return;
+        }
+        Instance brokenInstance = reconnection.brokenInstance;
+        reconnection.attempts++;
+
+        Instance newInstance = null;
+        try {
+            if (reconnection.rebind) {
+                try {
+                    LOGGER.info("Trying to rebind: " + brokenInstance + " (attempt #" + reconnection.attempts + ")");
+                    reconnection.ratesKept = brokenInstance.rebind();
+                    newInstance = brokenInstance;
+                } catch (InstanceNotFoundException e) {
+                    brokenInstance.disconnect();
+                    LOGGER.info("Bean " + e.getMessage() + " of " + brokenInstance + " is gone, discovering the beans again");
+                }
+            }
+
+            if (newInstance == null) {
+                // Resetting the instance
+                newInstance = new Instance(brokenInstance, appConfig);
+                // Try to reinit the connection and force to renew it
+                LOGGER.info("Trying to reconnect to: " + newInstance + " (attempt #" + reconnection.attempts + ")");
+                newInstance.init(true);
+                reconnection.ratesKept = false;
+            }
+        } catch (Exception e) {
+            if (newInstance != null) {
+                newInstance.cleanUp();
+            } else {
+                // The plan of the instance is kept for the next attempt
+                brokenInstance.disconnect();
+            }
+            reconnection.lastError = getErrorMessage(brokenInstance, e);
+            long delay = getRetryDelay(reconnection.attempts);
+            LOGGER.info("Next reconnection attempt to " + brokenInstance + " in " + delay + " ms");
+            if (!reconnection.cancelled) {
+                schedule(reconnection, delay);
+            }
+            return;
+        }
+
+        if (reconnection.cancelled) {
+            if (newInstance == brokenInstance) {
+                newInstance.disconnect();
+            } else {
+                newInstance.cleanUp();
+            }
+        } else {
+            // The connection succeeded, the main loop will swap the instance in
+            reconnection.reconnectedInstance = newInstance;
+        }
+    }
+
+    /**
+     * Exponential backoff, capped to MAX_RETRY_DELAY, with a random jitter of up to half the delay
+     * so that instances of the same node don't all retry at the same time.
+     */
+    static long getRetryDelay(int attempts) {
+        long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(attempts - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static String getErrorMessage(Instance instance, Exception e) {
+        String warning;
+        if (e instanceof IOException) {
+            warning = App.CANNOT_CONNECT_TO_INSTANCE + instance + ". Is a JMX Server running at this address?";
+            LOGGER.warn(warning);
+        } else if (e instanceof SecurityException) {
+            warning = App.CANNOT_CONNECT_TO_INSTANCE + instance + " because of bad credentials. Please check your credentials";
+            LOGGER.warn(warning);
+        } else if (e instanceof FailedLoginException) {
+            warning = App.CANNOT_CONNECT_TO_INSTANCE + instance + " because of bad credentials. Please check your credentials";
+            LOGGER.warn(warning);
+        } else {
+            warning = App.CANNOT_CONNECT_TO_INSTANCE + instance + " for an unknown reason." + e.getMessage();
+            LOGGER.fatal(warning, e);
+        }
+        return warning;
+    }
+
+    private static class ReconnectorThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jmxfetch-reconnector-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
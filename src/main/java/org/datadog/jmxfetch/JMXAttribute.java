@@ -6,128 +6,44 @@ import org.datadog.jmxfetch.util.JMXUtil;
 import javax.management.*;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public abstract class JMXAttribute {
 
     private final static Logger LOGGER = Logger.getLogger(Instance.class.getName());
-    private static final List<String> EXCLUDED_BEAN_PARAMS = Arrays.asList("domain", "domain_regex", "bean_name", "bean", "bean_regex", "attribute");
+    private static final List<String> EXCLUDED_BEAN_PARAMS = Arrays.asList("domain", "domain_regex", "bean_name", "bean", "bean_regex", "attribute", "priority");
     private static final String FIRST_CAP_PATTERN = "(.)([A-Z][a-z]+)";
     private static final String ALL_CAP_PATTERN = "([a-z0-9])([A-Z])";
     private static final String METRIC_REPLACEMENT = "([^a-zA-Z0-9_.]+)|(^[^a-zA-Z]+)";
     private static final String DOT_UNDERSCORE = "_*\\._*";
     protected static final String CASSANDRA_DOMAIN = "org.apache.cassandra.metrics";
+    // Shared by the beans of the same class, see Connection.getAttributesForBean
     private MBeanAttributeInfo attribute;
     private Connection connection;
-    private ObjectName beanName;
-    private String domain;
-    private String beanStringName;
-    private HashMap<String, String> beanParameters;
+    private AttributeRegistry registry;
+    // Shared by the attributes of the same bean
+    private BeanDescriptor bean;
     private String attributeName;
-    private LinkedHashMap<Object, Object> valueConversions;
-    protected String[] tags;
     private Configuration matchingConf;
-    private LinkedList<String> defaultTagsList;
+    // Chosen with the matching configuration
+    private ValueExtractor valueExtractor;
     private Boolean cassandraAliasing;
+    private Object prefetchedValue;
+    private boolean hasPrefetchedValue;
 
-    JMXAttribute(MBeanAttributeInfo attribute, ObjectName beanName, String instanceName,
-            Connection connection, HashMap<String, String> instanceTags, Boolean cassandraAliasing) {
+    JMXAttribute(MBeanAttributeInfo attribute, BeanDescriptor bean, Connection connection, AttributeRegistry registry,
+            Boolean cassandraAliasing) {
         this.attribute = attribute;
-        this.beanName = beanName;
+        this.bean = bean;
         this.matchingConf = null;
         this.connection = connection;
+        this.registry = registry;
         this.attributeName = JMXUtil.getReadableClassName(attribute.getName());
-        this.beanStringName = beanName.toString();
         this.cassandraAliasing = cassandraAliasing;
-
-        // A bean name is formatted like that: org.apache.cassandra.db:type=Caches,keyspace=system,cache=HintsColumnFamilyKeyCache
-        // i.e. : domain:bean_parameter1,bean_parameter2
-        String[] splitBeanName = beanStringName.split(":");
-        String domain = splitBeanName[0];
-        String beanParameters = splitBeanName[1];
-        this.domain = domain;
-
-        HashMap<String, String> beanParametersHash = getBeanParametersHash(beanParameters);
-        LinkedList<String> beanParametersList = getBeanParametersList(instanceName, beanParametersHash, instanceTags);
-
-        this.beanParameters = beanParametersHash;
-        this.defaultTagsList = renameConflictingParameters(beanParametersList);
-    }
-
-    public static HashMap<String, String> getBeanParametersHash(String beanParametersString) {
-        String[] beanParameters = beanParametersString.split(",");
-        HashMap<String, String> beanParamsMap = new HashMap<String, String>(beanParameters.length);
-        for (String param : beanParameters) {
-            String[] paramSplit = param.split("=");
-            if (paramSplit.length > 1) {
-                beanParamsMap.put(new String(paramSplit[0]), new String(paramSplit[1]));
-            } else {
-                beanParamsMap.put(new String(paramSplit[0]), "");
-            }
-        }
-
-        return beanParamsMap;
-    }
-
-    private LinkedList<String> getBeanParametersList(String instanceName, Map<String, String> beanParameters, HashMap<String, String> instanceTags) {
-        LinkedList<String> beanTags = new LinkedList<String>();
-        beanTags.add("instance:" + instanceName);
-        beanTags.add("jmx_domain:" + domain);
-
-        if (renameCassandraMetrics()) {
-            beanTags.addAll(getCassandraBeanTags(beanParameters));
-        } else {
-            for (Map.Entry<String, String> param : beanParameters.entrySet()) {
-                beanTags.add(param.getKey() + ":" + param.getValue());
-            }
-        }
-
-        if (instanceTags != null) {
-            for (Map.Entry<String, String> tag : instanceTags.entrySet()) {
-                beanTags.add(tag.getKey() + ":" + tag.getValue());
-            }
-        }
-
-        return beanTags;
-    }
-
-    private static LinkedList<String> renameConflictingParameters(LinkedList<String> beanParametersList) {
-        LinkedList<String> defaultTagsList = new LinkedList<String>();
-        for (String beanParameter: beanParametersList) {
-            // the 'host' parameter is renamed to 'bean_host'
-            if (beanParameter.startsWith("host:")) {
-                defaultTagsList.add("bean_host:" + beanParameter.substring("host:".length()));
-            } else if (beanParameter.endsWith(":")) {
-                // If the parameter's value is empty, remove the colon in the tag
-                defaultTagsList.add(beanParameter.substring(0, beanParameter.length() - 1));
-            } else {
-                defaultTagsList.add(beanParameter);
-            }
-        }
-
-        return defaultTagsList;
     }
 
     protected Boolean renameCassandraMetrics(){
-        return cassandraAliasing && domain.equals(CASSANDRA_DOMAIN);
-    }
-
-    private static Collection<String> getCassandraBeanTags(Map<String, String> beanParameters) {
-        Collection<String> tags = new LinkedList<String>();
-        for (Map.Entry<String, String> param : beanParameters.entrySet()) {
-            if (param.getKey().equals("name")) {
-                //This is already in the alias
-                continue;
-            } else if (param.getKey().equals("scope")) {
-                String type = beanParameters.get("type");
-                tags.add(type + ":" + param.getValue());
-            } else {
-                tags.add(param.getKey() + ":" + param.getValue());
-            }
-        }
-        return tags;
+        return cassandraAliasing && bean.isCassandraAliased();
     }
 
     static String convertMetricName(String metricName) {
@@ -140,35 +56,73 @@ public abstract class JMXAttribute {
 
     @Override
     public String toString() {
-        return "Bean name: " + beanStringName +
+        return "Bean name: " + bean.getBeanStringName() +
                 " - Attribute name: " + attributeName +
                 "  - Attribute type: " + attribute.getType();
     }
 
-    public abstract LinkedList<HashMap<String, Object>> getMetrics() throws AttributeNotFoundException, InstanceNotFoundException, MBeanException, ReflectionException, IOException;
+    /**
+     * Read the attribute and add its metrics to the batch of the collection.
+     */
+    public abstract void collect(MetricBatch batch) throws AttributeNotFoundException, InstanceNotFoundException, MBeanException, ReflectionException, IOException;
 
     /**
-     * An abstract function implemented in the inherited classes JMXSimpleAttribute and JMXComplexAttribute
+     * Check if the attribute matches a configuration: both its bean and the attribute itself must match.
      *
      * @param conf Configuration a Configuration object that will be used to check if the JMX Attribute match this configuration
      * @return a boolean that tells if the attribute matches the configuration or not
      */
-    public abstract boolean match(Configuration conf);
+    public boolean match(Configuration conf) {
+        return matchBeanFilters(conf, bean.getDomain(), bean.getBeanStringName(), bean.getParameters()) && matchAttributeFilters(conf);
+    }
+
+    /**
+     * An abstract function implemented in the inherited classes JMXSimpleAttribute and JMXComplexAttribute
+     * to match the attribute filters of a configuration, assuming the bean of the attribute matches it already.
+     *
+     * @param conf Configuration a Configuration object whose bean filters match the bean of the attribute
+     * @return a boolean that tells if the attribute matches the configuration or not
+     */
+    abstract boolean matchAttributeFilters(Configuration conf);
+
+    /**
+     * Match a bean against the domain and bean filters of a configuration, before any of its attributes is known.
+     * Beans that don't match any configuration can be discarded without fetching their attributes.
+     *
+     * @param conf              the configuration
+     * @param domain            the domain of the bean
+     * @param beanStringName    the bean name
+     * @param beanParameters    the bean parameters, i.e. the key properties of the bean name
+     */
+    static boolean matchBeanFilters(Configuration conf, String domain, String beanStringName, Map<String, String> beanParameters) {
+        return matchDomain(conf, domain)
+                && matchBean(conf, beanStringName, beanParameters)
+                && !excludeMatchDomain(conf, domain)
+                && !excludeMatchBean(conf, beanStringName, beanParameters);
+    }
 
+    /**
+     * @return      the number of metrics of the attribute, known from its metadata without reading it
+     */
     public int getMetricsCount() {
-        try {
-            return this.getMetrics().size();
-        } catch (Exception e) {
-            LOGGER.warn("Unable to get metrics from " + beanStringName);
-            return 0;
-        }
+        return 1;
+    }
+
+    /**
+     * @return      false if the number of metrics of the attribute is only known once it has been read
+     */
+    boolean isMetricsCountKnown() {
+        return true;
     }
 
     Object getJmxValue() throws AttributeNotFoundException, InstanceNotFoundException, MBeanException, ReflectionException, IOException {
-        return this.connection.getAttribute(this.beanName, JMXUtil.getReadableClassName(this.attribute.getName()));
+        if (hasPrefetchedValue) {
+            return prefetchedValue;
+        }
+        return this.connection.getAttribute(bean.getBeanName(), attributeName);
     }
 
-    boolean matchDomain(Configuration conf) {
+    private static boolean matchDomain(Configuration conf, String domain) {
         String includeDomain = conf.getInclude().getDomain();
         Pattern includeDomainRegex = conf.getInclude().getDomainRegex();
 
@@ -176,7 +130,7 @@ public abstract class JMXAttribute {
             && (includeDomainRegex == null || includeDomainRegex.matcher(domain).matches());
     }
 
-    boolean excludeMatchDomain(Configuration conf) {
+    private static boolean excludeMatchDomain(Configuration conf, String domain) {
         String excludeDomain = conf.getExclude().getDomain();
         Pattern excludeDomainRegex = conf.getExclude().getDomainRegex();
 
@@ -184,138 +138,114 @@ public abstract class JMXAttribute {
             || excludeDomainRegex != null && excludeDomainRegex.matcher(domain).matches();
     }
 
-    Object convertMetricValue(Object metricValue) {
-        Object converted = metricValue;
-
-        if (!getValueConversions().isEmpty()) {
-            converted = getValueConversions().get(metricValue);
-            if (converted == null && getValueConversions().get("default") != null) {
-                converted = getValueConversions().get("default");
-            }
-        }
-
-        return converted;
-    }
-
-    double getValueAsDouble(Object metricValue) {
-        Object value = convertMetricValue(metricValue);
-
-        if (value instanceof String) {
-            return Double.parseDouble((String) value);
-        } else if (value instanceof Integer) {
-            return new Double((Integer) (value));
-        } else if (value instanceof AtomicInteger) {
-            return new Double(((AtomicInteger) (value)).get());
-        } else if (value instanceof AtomicLong) {
-            Long l = ((AtomicLong) (value)).get();
-            return l.doubleValue();
-        } else if (value instanceof Double) {
-            return (Double) value;
-        } else if (value instanceof Boolean) {
-            return ((Boolean) value ? 1.0 : 0.0);
-        } else if (value instanceof Long) {
-            Long l = new Long((Long) value);
-            return l.doubleValue();
-        } else if (value instanceof Number) {
-            return ((Number) value).doubleValue();
-        } else {
-            try {
-                return new Double((Double) value);
-            } catch (Exception e) {
-                throw new NumberFormatException();
-            }
-        }
+    /**
+     * @return      the extractor of the values of the attribute, chosen when it matched its configuration
+     */
+    ValueExtractor getValueExtractor() {
+        return valueExtractor;
     }
 
-    private boolean matchBeanRegex(Filter filter, boolean matchIfNoRegex) {
-        ArrayList<Pattern> beanRegexes = filter.getBeanRegexes();
+    private static boolean matchBeanRegex(Filter filter, boolean matchIfNoRegex, String beanStringName) {
+        ArrayList<Filter.BeanRegex> beanRegexes = filter.getBeanRegexes();
         if (beanRegexes.isEmpty()) {
             return matchIfNoRegex;
         }
 
-        for (Pattern beanRegex : beanRegexes) {
-            if(beanRegex.matcher(beanStringName).matches()) {
+        for (Filter.BeanRegex beanRegex : beanRegexes) {
+            if (beanRegex.matches(beanStringName)) {
                 return true;
             }
         }
         return false;
     }
 
-    private boolean matchBeanName(Configuration configuration) {
+    private static boolean matchBeanName(Configuration configuration, String beanStringName, Map<String, String> beanParameters) {
         Filter include = configuration.getInclude();
 
-        if (!include.isEmptyBeanName() && !include.getBeanNames().contains(beanStringName)) {
+        if (!include.isEmptyBeanName() && !include.getBeanNameSet().contains(beanStringName)) {
             return false;
         }
 
-        for (String bean_attr : include.keySet()) {
-            if (EXCLUDED_BEAN_PARAMS.contains(bean_attr)) {
-                continue;
+        for (String bean_attr : include.getBeanParameterKeys()) {
+            String beanValue = beanParameters.get(bean_attr);
+            if (beanValue == null || !include.getParameterValueSet(bean_attr).contains(beanValue)) {
+                return false;
             }
-
-            ArrayList<String> beanValues = include.getParameterValues(bean_attr);
-
-            if (beanParameters.get(bean_attr) == null || !(beanValues.contains(beanParameters.get(bean_attr)))){
-                    return false;
-                }
         }
         return true;
     }
 
-    private boolean excludeMatchBeanName(Configuration conf) {
+    private static boolean excludeMatchBeanName(Configuration conf, String beanStringName, Map<String, String> beanParameters) {
         Filter exclude = conf.getExclude();
-        ArrayList<String> beanNames = exclude.getBeanNames();
 
-        if(beanNames.contains(beanStringName)){
+        if (exclude.getBeanNameSet().contains(beanStringName)) {
             return true;
         }
 
-        for (String bean_attr : exclude.keySet()) {
-            if (EXCLUDED_BEAN_PARAMS.contains(bean_attr)) {
-                continue;
-            }
-
-            if (beanParameters.get(bean_attr) == null) {
-                continue;
-            }
-
-            ArrayList<String> beanValues = exclude.getParameterValues(bean_attr);
-            for (String beanVal : beanValues) {
-                if (beanParameters.get(bean_attr).equals(beanVal)) {
-                    return true;
-                }
+        for (String bean_attr : exclude.getBeanParameterKeys()) {
+            String beanValue = beanParameters.get(bean_attr);
+            if (beanValue != null && exclude.getParameterValueSet(bean_attr).contains(beanValue)) {
+                return true;
             }
         }
         return false;
     }
 
-    boolean matchBean(Configuration configuration) {
-        return matchBeanName(configuration) && matchBeanRegex(configuration.getInclude(), true);
+    private static boolean matchBean(Configuration configuration, String beanStringName, Map<String, String> beanParameters) {
+        return matchBeanName(configuration, beanStringName, beanParameters)
+                && matchBeanRegex(configuration.getInclude(), true, beanStringName);
     }
 
-    boolean excludeMatchBean(Configuration configuration) {
-        return excludeMatchBeanName(configuration) || matchBeanRegex(configuration.getExclude(), false);
+    private static boolean excludeMatchBean(Configuration configuration, String beanStringName, Map<String, String> beanParameters) {
+        return excludeMatchBeanName(configuration, beanStringName, beanParameters)
+                || matchBeanRegex(configuration.getExclude(), false, beanStringName);
     }
 
+    /**
+     * @return      the "values" conversions of the attribute in a configuration, null if there are none
+     */
     @SuppressWarnings("unchecked")
-    HashMap<Object, Object> getValueConversions() {
-        if (valueConversions == null) {
-            Object includedAttribute = matchingConf.getInclude().getAttribute();
-            if (includedAttribute instanceof LinkedHashMap<?, ?>) {
-                String attributeName = JMXUtil.getReadableClassName(this.attribute.getName());
-                LinkedHashMap<String, LinkedHashMap<Object, Object>> attribute =
-                        ((LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<Object, Object>>>) includedAttribute).get(attributeName);
-
-                if (attribute != null) {
-                    valueConversions = attribute.get("values");
-                }
-            }
-            if (valueConversions == null) {
-                valueConversions = new LinkedHashMap<Object, Object>();
+    private LinkedHashMap<Object, Object> getValueConversions(Configuration conf) {
+        Object includedAttribute = conf.getInclude().getAttribute();
+        if (includedAttribute instanceof LinkedHashMap<?, ?>) {
+            LinkedHashMap<String, LinkedHashMap<Object, Object>> attribute =
+                    ((LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<Object, Object>>>) includedAttribute).get(attributeName);
+
+            if (attribute != null) {
+                return attribute.get("values");
             }
         }
+        return null;
+    }
+
+    /**
+     * Hand over a value already read for this attribute (e.g. by a bulk getAttributes call on its bean)
+     * so the next collection doesn't query the MBean server again.
+     */
+    void setPrefetchedValue(Object value) {
+        this.prefetchedValue = value;
+        this.hasPrefetchedValue = true;
+    }
+
+    void clearPrefetchedValue() {
+        this.prefetchedValue = null;
+        this.hasPrefetchedValue = false;
+    }
+
+    AttributeRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Free the slots of the metrics of the attribute in the registry, once the attribute is not collected anymore.
+     */
+    abstract void release();
 
-        return valueConversions;
+    /**
+     * Read the attribute through a new connection, when its instance reconnects to the same server.
+     */
+    void setConnection(Connection connection) {
+        this.connection = connection;
     }
 
     public Configuration getMatchingConf() {
@@ -323,18 +253,30 @@ public abstract class JMXAttribute {
     }
 
     public void setMatchingConf(Configuration matchingConf) {
+        // The extractor is chosen first: an attribute whose conversions can't be read doesn't match
+        this.valueExtractor = matchingConf != null
+                ? ValueExtractor.forAttribute(attribute.getType(), getValueConversions(matchingConf))
+                : null;
         this.matchingConf = matchingConf;
     }
 
+    /**
+     * @return      the priority of the configuration matching the attribute, higher priorities are read first
+     */
+    int getPriority() {
+        return (matchingConf != null) ? matchingConf.getPriority() : 0;
+    }
+
     MBeanAttributeInfo getAttribute() {
         return attribute;
     }
 
+    /**
+     * @return      the tags of the metrics of the attribute, the ones of its bean unless its configuration adds some
+     */
     @SuppressWarnings("unchecked")
     protected String[] getTags() {
-        if(tags != null) {
-            return tags;
-        }
+        String[] beanTags = bean.getTags(cassandraAliasing);
 
         Filter include = matchingConf.getInclude();
         if (include != null) {
@@ -344,18 +286,28 @@ public abstract class JMXAttribute {
                 if (attributeParams != null) {
                     ArrayList<String> yamlTags = attributeParams.get("tags");
                     if ( yamlTags != null) {
-                        defaultTagsList.addAll(yamlTags);
+                        String[] tags = Arrays.copyOf(beanTags, beanTags.length + yamlTags.size());
+                        for (int i = 0; i < yamlTags.size(); i++) {
+                            tags[beanTags.length + i] = yamlTags.get(i);
+                        }
+                        return tags;
                     }
                 }
             }
         }
-        tags = new String[defaultTagsList.size()];
-        tags = defaultTagsList.toArray(tags);
-        return tags;
+        return beanTags;
     }
 
     String getBeanStringName() {
-        return beanStringName;
+        return bean.getBeanStringName();
+    }
+
+    ObjectName getBeanName() {
+        return bean.getBeanName();
+    }
+
+    BeanDescriptor getBean() {
+        return bean;
     }
 
     String getAttributeName() {
@@ -367,11 +319,11 @@ public abstract class JMXAttribute {
     }
 
     protected String getDomain() {
-        return domain;
+        return bean.getDomain();
     }
 
     protected HashMap<String, String> getBeanParameters() {
-        return beanParameters;
+        return bean.getParameters();
     }
 
 }
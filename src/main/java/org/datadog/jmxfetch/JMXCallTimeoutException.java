@@ -0,0 +1,15 @@
+package org.datadog.jmxfetch;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when a call to the MBean server didn't complete within the connection call timeout.
+ * The call has been abandoned and the connector recycled, the attribute it was reading is just missing.
+ */
+public class JMXCallTimeoutException extends SocketTimeoutException {
+    private static final long serialVersionUID = 1L;
+
+    public JMXCallTimeoutException(String message) {
+        super(message);
+    }
+}
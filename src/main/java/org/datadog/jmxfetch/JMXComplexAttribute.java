@@ -4,6 +4,8 @@ import org.datadog.jmxfetch.util.JMXUtil;
 
 import javax.management.*;
 import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenMBeanAttributeInfo;
 import java.io.IOException;
 import java.util.*;
 
@@ -12,91 +14,194 @@ public class JMXComplexAttribute extends JMXAttribute {
 
     public static final String ALIAS = "alias";
     public static final String METRIC_TYPE = "metric_type";
-    private HashMap<String, HashMap<String, Object>> subAttributeList;
 
-    public JMXComplexAttribute(MBeanAttributeInfo attribute, ObjectName beanName, String instanceName,
-                               Connection connection, HashMap<String, String> instanceTags) {
-        super(attribute, beanName, instanceName, connection, instanceTags, false);
-        this.subAttributeList = new HashMap<String, HashMap<String, Object>>();
+    /**
+     * How the sub-attributes are read from the value of the attribute, resolved once from its type.
+     */
+    private enum Kind {
+        COMPOSITE_DATA {
+            @Override
+            double getValue(ValueExtractor extractor, Object value, String subAttribute, int index) {
+                return extractor.extract(((CompositeData) value).get(subAttribute));
+            }
+        },
+        MAP {
+            @Override
+            double getValue(ValueExtractor extractor, Object value, String subAttribute, int index) {
+                return extractor.extract(((HashMap<String, Object>) value).get(subAttribute));
+            }
+        },
+        LONG_ARRAY {
+            @Override
+            double getValue(ValueExtractor extractor, Object value, String subAttribute, int index) {
+                // The items are read without boxing them
+                return extractor.extract(((long[]) value)[index]);
+            }
+        },
+        UNSUPPORTED {
+            @Override
+            double getValue(ValueExtractor extractor, Object value, String subAttribute, int index) {
+                throw new NumberFormatException();
+            }
+        };
+
+        /**
+         * @param index     the index of the sub-attribute in a long[], unused by the other kinds
+         */
+        abstract double getValue(ValueExtractor extractor, Object value, String subAttribute, int index);
+
+        static Kind forType(String attributeType) {
+            if ("javax.management.openmbean.CompositeData".equals(attributeType)) {
+                return COMPOSITE_DATA;
+            } else if ("java.util.HashMap".equals(attributeType)) {
+                return MAP;
+            } else if ("long[]".equals(attributeType)) {
+                return LONG_ARRAY;
+            }
+            return UNSUPPORTED;
+        }
+    }
+
+    private final Kind kind;
+    // Names of the sub-attributes matching the configuration, in the order of a HashSet of them
+    private ArrayList<String> subAttributeList;
+    // Whether the sub-attributes are known, from the attribute metadata or from a first read
+    private boolean subAttributesKnown;
+    // Slots of the metrics of the sub-attributes in the registry, null until the attribute is first collected
+    private int[] slots;
+    // Indices of the sub-attributes of a long[], parsed along with the allocation of the slots
+    private int[] arrayIndices;
+    // Length that a long[] must have for all its sub-attributes to be read
+    private int minArrayLength;
+
+    public JMXComplexAttribute(MBeanAttributeInfo attribute, BeanDescriptor bean, Connection connection,
+                               AttributeRegistry registry) {
+        super(attribute, bean, connection, registry, false);
+        this.kind = Kind.forType(JMXUtil.getReadableClassName(attribute.getType()));
+        this.subAttributeList = new ArrayList<String>();
+    }
+
+    /**
+     * @return      the keys of the attribute if its open type is described in its metadata, null otherwise
+     */
+    private Set<String> getCompositeKeys() {
+        MBeanAttributeInfo attribute = getAttribute();
+        Object openType = null;
+        if (attribute instanceof OpenMBeanAttributeInfo) {
+            openType = ((OpenMBeanAttributeInfo) attribute).getOpenType();
+        } else if (attribute.getDescriptor() != null) {
+            openType = attribute.getDescriptor().getFieldValue(JMX.OPEN_TYPE_FIELD);
+        }
+
+        if (openType instanceof CompositeType) {
+            return ((CompositeType) openType).keySet();
+        }
+        return null;
     }
 
     private void populateSubAttributeList(Object attributeValue) {
-        String attributeType = JMXUtil.getReadableClassName(getAttribute().getType());
+        HashSet<String> subAttributes = new HashSet<String>();
 
-        if ("javax.management.openmbean.CompositeData".equals(attributeType)) {
+        if (kind == Kind.COMPOSITE_DATA) {
             CompositeData data = (CompositeData) attributeValue;
-            for (String key : data.getCompositeType().keySet()) {
-                this.subAttributeList.put(key, new HashMap<String, Object>());
-            }
-        } else if ("java.util.HashMap".equals(attributeType)) {
+            subAttributes.addAll(data.getCompositeType().keySet());
+        } else if (kind == Kind.MAP) {
             HashMap<String, Double> data = (HashMap<String, Double>) attributeValue;
-            for (String key : data.keySet()) {
-                this.subAttributeList.put(key, new HashMap<String, Object>());
-            }
-        } else if ("long[]".equals(attributeType)) {
+            subAttributes.addAll(data.keySet());
+        } else if (kind == Kind.LONG_ARRAY) {
             long[] data = (long[]) attributeValue;
             for (int i = 0 ; i < data.length ; i++) {
-                this.subAttributeList.put(""+i, new HashMap<String, Object>());
+                subAttributes.add(""+i);
             }
         }
+        setSubAttributeList(subAttributes);
+    }
+
+    /**
+     * The sub-attributes are kept in the iteration order of a hash set, the order in which their metrics
+     * have always been reported.
+     */
+    private void setSubAttributeList(HashSet<String> subAttributes) {
+        this.subAttributeList = new ArrayList<String>(subAttributes);
     }
 
     @Override
-    public LinkedList<HashMap<String, Object>> getMetrics()
+    public void collect(MetricBatch batch)
             throws AttributeNotFoundException, InstanceNotFoundException,
             MBeanException, ReflectionException, IOException {
 
-        LinkedList<HashMap<String, Object>> metrics = new LinkedList<HashMap<String, Object>>();
-
-        for (Map.Entry<String, HashMap<String, Object>> pair : subAttributeList.entrySet()) {
-            String subAttribute = pair.getKey();
-            HashMap<String, Object> metric = pair.getValue();
-
-            if (metric.get(ALIAS) == null) {
-                metric.put(ALIAS, convertMetricName(getAlias(subAttribute)));
-            }
-
-            if (metric.get(METRIC_TYPE) == null) {
-                metric.put(METRIC_TYPE, getMetricType(subAttribute));
-            }
+        // Snapshot the attribute once for this collection, every sub-attribute is decoded from it
+        Object value = this.getJmxValue();
 
-            if (metric.get("tags") == null) {
-                metric.put("tags", getTags());
-            }
+        if (!subAttributesKnown) {
+            // Map keys and array lengths aren't part of the metadata, they are learned on the first read
+            populateSubAttributeList(value);
+            matchAttribute(getMatchingConf());
+            excludeMatchAttribute(getMatchingConf());
+            subAttributesKnown = true;
+        }
 
-            metric.put("complexity", "complex");
-            metric.put("size", subAttributeList.size());
-            metric.put("value", getValue(subAttribute));
-            metrics.add(metric);
+        AttributeRegistry registry = getRegistry();
+        if (slots == null) {
+            allocateSlots(registry);
+        }
 
+        // Checked before reporting any metric, so that an array that shrank doesn't leave a partial collection
+        if (kind == Kind.LONG_ARRAY && ((long[]) value).length < minArrayLength) {
+            throw new NumberFormatException("The " + ((long[]) value).length + " items of " + getAttributeName()
+                    + " are fewer than the " + minArrayLength + " collected");
         }
-        return metrics;
 
+        ValueExtractor extractor = getValueExtractor();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < slots.length; i++) {
+            double subAttributeValue = kind.getValue(extractor, value, subAttributeList.get(i),
+                    arrayIndices != null ? arrayIndices[i] : -1);
+            registry.setValue(slots[i], subAttributeValue, now);
+            batch.add(slots[i], subAttributeValue, now);
+        }
     }
 
-    private double getValue(String subAttribute) throws AttributeNotFoundException, InstanceNotFoundException,
-            MBeanException, ReflectionException, IOException {
-
-
-        Object value = this.getJmxValue();
-        String attributeType = JMXUtil.getReadableClassName(getAttribute().getType());
+    private void allocateSlots(AttributeRegistry registry) {
+        // Everything is resolved before allocating any slot, so that a configuration error doesn't leak slots
+        subAttributeList.trimToSize();
+        String[] tags = getTags();
+        String[] aliases = new String[subAttributeList.size()];
+        String[] metricTypes = new String[subAttributeList.size()];
+        for (int i = 0; i < aliases.length; i++) {
+            aliases[i] = convertMetricName(getAlias(subAttributeList.get(i)));
+            metricTypes[i] = getMetricType(subAttributeList.get(i));
+        }
 
-        if ("javax.management.openmbean.CompositeData".equals(attributeType)) {
-            CompositeData data = (CompositeData) value;
-            return getValueAsDouble(data.get(subAttribute));
+        if (kind == Kind.LONG_ARRAY) {
+            int[] arrayIndices = new int[subAttributeList.size()];
+            int minArrayLength = 0;
+            for (int i = 0; i < arrayIndices.length; i++) {
+                arrayIndices[i] = Integer.parseInt(subAttributeList.get(i));
+                minArrayLength = Math.max(minArrayLength, arrayIndices[i] + 1);
+            }
+            this.arrayIndices = arrayIndices;
+            this.minArrayLength = minArrayLength;
+        }
 
-        } else if ("java.util.HashMap".equals(attributeType)) {
-            HashMap<String, Object> data = (HashMap<String, Object>) value;
-            return getValueAsDouble(data.get(subAttribute));
-        }else if ("long[]".equals(attributeType)) {
-            long[] data = (long[]) value;
-            return getValueAsDouble(data[Integer.parseInt(subAttribute)]);
+        int[] slots = new int[aliases.length];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = registry.allocate(aliases[i], metricTypes[i], tags, slots.length);
         }
+        this.slots = slots;
+    }
 
-        throw new NumberFormatException();
+    @Override
+    void release() {
+        if (slots != null) {
+            for (int slot : slots) {
+                getRegistry().release(slot);
+            }
+            slots = null;
+        }
     }
 
-    private Object getMetricType(String subAttribute) {
+    private String getMetricType(String subAttribute) {
         String subAttributeName = JMXUtil.getReadableClassName(getAttribute().getName()) + "." + subAttribute;
         String metricType = null;
 
@@ -131,30 +236,61 @@ public class JMXComplexAttribute extends JMXAttribute {
     }
 
 
+    /**
+     * @return      the number of sub-attributes, or 1 while they are not known yet
+     */
     @Override
-    public boolean match(Configuration configuration) {
+    public int getMetricsCount() {
+        return subAttributesKnown ? subAttributeList.size() : 1;
+    }
 
-        if (!matchDomain(configuration)
-                || !matchBean(configuration)
-                || excludeMatchDomain(configuration)
-                || excludeMatchBean(configuration)) {
-            return false;
-        }
-        try {
-            populateSubAttributeList(getJmxValue());
-        } catch (Exception e) {
-            return false;
+    @Override
+    boolean isMetricsCountKnown() {
+        return subAttributesKnown;
+    }
+
+    @Override
+    boolean matchAttributeFilters(Configuration configuration) {
+        subAttributeList.clear();
+        Set<String> keys = getCompositeKeys();
+        if (keys == null) {
+            // The sub-attributes will be filtered once known
+            subAttributesKnown = false;
+            return mayMatchAttribute(configuration) && !excludeMatchWholeAttribute(configuration);
         }
 
+        HashSet<String> subAttributes = new HashSet<String>();
+        subAttributes.addAll(keys);
+        setSubAttributeList(subAttributes);
+        subAttributesKnown = true;
         return matchAttribute(configuration) && !excludeMatchAttribute(configuration);
     }
 
-    private boolean matchSubAttribute(Filter params, String subAttributeName, boolean matchOnEmpty) {
-        if ((params.getAttribute() instanceof LinkedHashMap<?, ?>)
-                && ((LinkedHashMap<String, Object>) (params.getAttribute())).containsKey(subAttributeName)) {
+    /**
+     * @return      whether some sub-attributes may match the configuration, before they are known
+     */
+    private boolean mayMatchAttribute(Configuration configuration) {
+        Filter include = configuration.getInclude();
+        if (matchSubAttribute(include, getAttributeName(), true)) {
             return true;
-        } else if ((params.getAttribute() instanceof ArrayList<?>
-                && ((ArrayList<String>) (params.getAttribute())).contains(subAttributeName))) {
+        }
+
+        String prefix = getAttributeName() + ".";
+        for (String attributeName : include.getAttributeNames()) {
+            if (attributeName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean excludeMatchWholeAttribute(Configuration configuration) {
+        Filter exclude = configuration.getExclude();
+        return exclude.getAttribute() != null && matchSubAttribute(exclude, getAttributeName(), false);
+    }
+
+    private boolean matchSubAttribute(Filter params, String subAttributeName, boolean matchOnEmpty) {
+        if (params.getAttributeNames().contains(subAttributeName)) {
             return true;
         } else if (params.getAttribute() == null) {
             return matchOnEmpty;
@@ -170,7 +306,7 @@ public class JMXComplexAttribute extends JMXAttribute {
             return true;
         }
 
-        Iterator<String> it = subAttributeList.keySet().iterator();
+        Iterator<String> it = subAttributeList.iterator();
 
         while (it.hasNext()) {
             String subAttribute = it.next();
@@ -190,7 +326,7 @@ public class JMXComplexAttribute extends JMXAttribute {
             return true;
         }
 
-        Iterator<String> it = subAttributeList.keySet().iterator();
+        Iterator<String> it = subAttributeList.iterator();
         while (it.hasNext()) {
             String subAttribute = it.next();
             if (matchSubAttribute(exclude, getAttributeName() + "." + subAttribute, false)) {
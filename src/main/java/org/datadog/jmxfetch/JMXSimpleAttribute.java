@@ -7,78 +7,55 @@ import java.util.*;
 @SuppressWarnings("unchecked")
 public class JMXSimpleAttribute extends JMXAttribute {
 
-    private String alias;
-    private String metricType;
+    // Slot of the metric in the registry, -1 until the attribute is first collected
+    private int slot = -1;
 
-    public JMXSimpleAttribute(MBeanAttributeInfo attribute, ObjectName beanName, String instanceName,
-                              Connection connection, HashMap<String, String> instanceTags, Boolean cassandraAliasing) {
-        super(attribute, beanName, instanceName, connection, instanceTags, cassandraAliasing);
+    public JMXSimpleAttribute(MBeanAttributeInfo attribute, BeanDescriptor bean, Connection connection,
+                              AttributeRegistry registry, Boolean cassandraAliasing) {
+        super(attribute, bean, connection, registry, cassandraAliasing);
     }
 
     @Override
-    public LinkedList<HashMap<String, Object>> getMetrics() throws AttributeNotFoundException,
+    public void collect(MetricBatch batch) throws AttributeNotFoundException,
             InstanceNotFoundException, MBeanException, ReflectionException, IOException {
-        HashMap<String, Object> metric = new HashMap<String, Object>();
-
-        metric.put("alias", getAlias());
-        metric.put("value", getValue());
-        metric.put("tags", getTags());
-        metric.put("metric_type", getMetricType());
-        metric.put("complexity", "simple");
-        LinkedList<HashMap<String, Object>> metrics = new LinkedList<HashMap<String, Object>>();
-        metrics.add(metric);
-        return metrics;
+        AttributeRegistry registry = getRegistry();
+        if (slot < 0) {
+            slot = registry.allocate(getAlias(), getMetricType(), getTags());
+        }
+        double value = getValue();
+        long now = System.currentTimeMillis();
+        registry.setValue(slot, value, now);
+        batch.add(slot, value, now);
     }
 
 
-    public boolean match(Configuration configuration) {
-        return matchDomain(configuration)
-                && matchBean(configuration)
-                && matchAttribute(configuration)
-                && !(
-                excludeMatchDomain(configuration)
-                        || excludeMatchBean(configuration)
-                        || excludeMatchAttribute(configuration));
+    @Override
+    void release() {
+        if (slot >= 0) {
+            getRegistry().release(slot);
+            slot = -1;
+        }
+    }
+
+    @Override
+    boolean matchAttributeFilters(Configuration configuration) {
+        return matchAttribute(configuration) && !excludeMatchAttribute(configuration);
     }
 
     private boolean excludeMatchAttribute(Configuration configuration) {
-        Filter exclude = configuration.getExclude();
-        if (exclude.getAttribute() == null) {
-            return false;
-        } else if ((exclude.getAttribute() instanceof LinkedHashMap<?, ?>)
-                && ((LinkedHashMap<String, Object>) (exclude.getAttribute())).containsKey(getAttributeName())) {
-            return true;
-
-        } else if ((exclude.getAttribute() instanceof ArrayList<?>
-                && ((ArrayList<String>) (exclude.getAttribute())).contains(getAttributeName()))) {
-            return true;
-        }
-        return false;
+        return configuration.getExclude().getAttributeNames().contains(getAttributeName());
     }
 
     private boolean matchAttribute(Configuration configuration) {
         Filter include = configuration.getInclude();
-        if (include.getAttribute() == null) {
-            return true;
-
-        } else if ((include.getAttribute() instanceof LinkedHashMap<?, ?>)
-                && ((LinkedHashMap<String, Object>) (include.getAttribute())).containsKey(getAttributeName())) {
-            return true;
-
-        } else if ((include.getAttribute() instanceof ArrayList<?>
-                && ((ArrayList<String>) (include.getAttribute())).contains(getAttributeName()))) {
-            return true;
-        }
-
-        return false;
+        return include.getAttribute() == null || include.getAttributeNames().contains(getAttributeName());
     }
 
     private String getAlias() {
         Filter include = getMatchingConf().getInclude();
         LinkedHashMap<String, Object> conf = getMatchingConf().getConf();
-        if (alias != null) {
-            return alias;
-        } else if (include.getAttribute() instanceof LinkedHashMap<?, ?>) {
+        String alias = null;
+        if (include.getAttribute() instanceof LinkedHashMap<?, ?>) {
             LinkedHashMap<String, LinkedHashMap<String, String>> attribute = (LinkedHashMap<String, LinkedHashMap<String, String>>) (include.getAttribute());
             alias = attribute.get(getAttribute().getName()).get("alias");
         } else if (conf.get("metric_prefix") != null) {
@@ -92,8 +69,7 @@ public class JMXSimpleAttribute extends JMXAttribute {
             //alias = "jmx." + getDomain() + "." + getAttributeName();
             alias =  getDomain() + "." + getAttributeName();
         }
-        alias = convertMetricName(alias);
-        return alias;
+        return convertMetricName(alias);
     }
 
     private String getCassandraAlias() {
@@ -114,9 +90,8 @@ public class JMXSimpleAttribute extends JMXAttribute {
 
     private String getMetricType() {
         Filter include = getMatchingConf().getInclude();
-        if (metricType != null) {
-            return metricType;
-        } else if (include.getAttribute() instanceof LinkedHashMap<?, ?>) {
+        String metricType = null;
+        if (include.getAttribute() instanceof LinkedHashMap<?, ?>) {
             LinkedHashMap<String, LinkedHashMap<String, String>> attribute = (LinkedHashMap<String, LinkedHashMap<String, String>>) (include.getAttribute());
             metricType = attribute.get(getAttributeName()).get("metric_type");
             if (metricType == null) {
@@ -133,6 +108,6 @@ public class JMXSimpleAttribute extends JMXAttribute {
 
     private double getValue() throws AttributeNotFoundException, InstanceNotFoundException, MBeanException,
             ReflectionException, IOException, NumberFormatException {
-        return getValueAsDouble(this.getJmxValue());
+        return getValueExtractor().extract(this.getJmxValue());
     }
 }
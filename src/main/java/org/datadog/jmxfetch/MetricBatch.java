@@ -0,0 +1,113 @@
+package org.datadog.jmxfetch;
+
+import java.util.Arrays;
+
+/**
+ * The metrics of a collection of an instance, handed over to the reporter.
+ *
+ * A batch is kept by its instance and filled again at each collection: metrics are stored in parallel primitive
+ * arrays, the slot of the metric in the registry of the instance, its value and the time it was read. Everything
+ * else about a metric (alias, type, tags) is looked up in the registry, so a collection doesn't allocate anything
+ * once the arrays are large enough.
+ */
+public class MetricBatch {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final AttributeRegistry registry;
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int size;
+
+    MetricBatch(AttributeRegistry registry) {
+        this.registry = registry;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void add(int slot, double value, long time) {
+        if (size == slots.length) {
+            slots = Arrays.copyOf(slots, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            times = Arrays.copyOf(times, size * 2);
+        }
+        slots[size] = slot;
+        values[size] = value;
+        times[size] = time;
+        size++;
+    }
+
+    /**
+     * Drop the metrics added since the batch had the given size.
+     */
+    void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return      the time, in milliseconds, the value of the metric was read
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public String getAlias(int index) {
+        return registry.getAlias(slots[index]);
+    }
+
+    public String getMetricType(int index) {
+        return registry.getMetricType(slots[index]);
+    }
+
+    /**
+     * @return      the tags of the metric, shared with other metrics: not to be modified
+     */
+    public String[] getTags(int index) {
+        return registry.getTags(slots[index]);
+    }
+
+    /**
+     * @return      the number of metrics of the complex attribute of the metric, 0 for the metric of a simple attribute
+     */
+    public int getComplexSize(int index) {
+        return registry.getComplexSize(slots[index]);
+    }
+
+    /**
+     * Compute the rate of a metric since it was last reported, the value and time of the metric becoming the sample
+     * of the next computation.
+     *
+     * @return      the rate per second, NaN the first time the metric is reported
+     */
+    public double updateRate(int index) {
+        return registry.updateRate(slots[index], values[index], times[index]);
+    }
+
+    /**
+     * @return      what the reporter derived from the metric when it first reported it, null until then
+     */
+    public Object getOutput(int index) {
+        return registry.getOutput(slots[index]);
+    }
+
+    /**
+     * Keep what the reporter derived from the metric for the next reports, for as long as the metric is collected.
+     */
+    public void setOutput(int index, Object output) {
+        registry.setOutput(slots[index], output);
+    }
+}
@@ -0,0 +1,23 @@
+package org.datadog.jmxfetch;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the connection is lost in the middle of a collection.
+ * The metrics collected until then are still valid and can be reported.
+ */
+public class PartialCollectionException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    // Only meaningful to the collecting thread, not worth serializing
+    private final transient MetricBatch metrics;
+
+    public PartialCollectionException(IOException cause, MetricBatch metrics) {
+        super(cause.getMessage(), cause);
+        this.metrics = metrics;
+    }
+
+    public MetricBatch getMetrics() {
+        return metrics;
+    }
+}
@@ -49,6 +49,7 @@ public class RemoteConnection extends Connection {
             }
 
         }
+        setCallTimeout(connectionParams);
         createConnection();
 
     }
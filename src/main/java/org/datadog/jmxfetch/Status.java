@@ -35,7 +35,7 @@ public class Status {
         this.clearStats();
     }
 
-    private void clearStats() {
+    private synchronized void clearStats() {
         instanceStats.put(INITIALIZED_CHECKS, new HashMap<String, Object>());
         instanceStats.put(FAILED_CHECKS, new HashMap<String, Object>());
     }
@@ -43,11 +43,25 @@ public class Status {
     public void addInstanceStats(String checkName, String instance, int metricCount, 
                                  int serviceCheckCount, String message, String status) {
         addStats(checkName, instance, metricCount, serviceCheckCount, message, 
-                 status, INITIALIZED_CHECKS);
+                 status, INITIALIZED_CHECKS, null);
+    }
+
+    /**
+     * Stats of an instance that is being reconnected in the background.
+     */
+    public void addBrokenInstanceStats(String checkName, String instance, int serviceCheckCount, String message,
+                                       String status, int reconnectAttempts, String lastError, long nextRetryTimestamp) {
+        HashMap<String, Object> reconnectStats = new HashMap<String, Object>();
+        reconnectStats.put("reconnect_attempts", reconnectAttempts);
+        reconnectStats.put("last_error", lastError);
+        reconnectStats.put("next_retry_timestamp", nextRetryTimestamp);
+        addStats(checkName, instance, 0, serviceCheckCount, message,
+                 status, INITIALIZED_CHECKS, reconnectStats);
     }
 
     @SuppressWarnings("unchecked")
-    private void addStats(String checkName, String instance, int metricCount, int serviceCheckCount, String message, String status, String key) {
+    private synchronized void addStats(String checkName, String instance, int metricCount, int serviceCheckCount, String message, String status, String key,
+                                       HashMap<String, Object> extraStats) {
         LinkedList<HashMap<String, Object>> checkStats;
         HashMap<String, Object> initializedChecks;
         initializedChecks = (HashMap<String, Object>) this.instanceStats.get(key);
@@ -70,13 +84,16 @@ public class Status {
         }
         instStats.put("message", message);
         instStats.put("status", status);
+        if (extraStats != null) {
+            instStats.putAll(extraStats);
+        }
         checkStats.add(instStats);
         initializedChecks.put(checkName, checkStats);
         this.instanceStats.put(key, initializedChecks);
     }
 
     public void addInitFailedCheck(String checkName, String message, String status) {
-        addStats(checkName, null, -1, -1, message, status, FAILED_CHECKS);
+        addStats(checkName, null, -1, -1, message, status, FAILED_CHECKS, null);
     }
 
     private String generateYaml() {
@@ -87,7 +104,7 @@ public class Status {
         return yaml.dump(status);
     }
 
-    public void flush() {
+    public synchronized void flush() {
         if (isEnabled()) {
             String yaml = generateYaml();
             try {
@@ -0,0 +1,183 @@
+package org.datadog.jmxfetch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns the value of an attribute into the value of its metric.
+ *
+ * An extractor is chosen once per attribute, when it matches a configuration, from the type declared in the
+ * attribute metadata and the "values" conversions of the configuration. Reads of the attribute then go through a
+ * single check of the expected class instead of trying every supported class and looking up the conversions.
+ * A value that isn't of the declared type (attributes declared as Object, or servers lying about their types) is
+ * still converted, by the generic extractor.
+ */
+abstract class ValueExtractor {
+
+    /**
+     * Converts any value supported by JMXFetch: numbers, atomic numbers, booleans and numeric strings.
+     */
+    static final ValueExtractor GENERIC = new ValueExtractor() {
+        @Override
+        double extract(Object value) {
+            if (value instanceof String) {
+                return Double.parseDouble((String) value);
+            } else if (value instanceof Integer) {
+                return ((Integer) value).intValue();
+            } else if (value instanceof AtomicInteger) {
+                return ((AtomicInteger) value).get();
+            } else if (value instanceof AtomicLong) {
+                return ((AtomicLong) value).get();
+            } else if (value instanceof Double) {
+                return ((Double) value).doubleValue();
+            } else if (value instanceof Boolean) {
+                return ((Boolean) value ? 1.0 : 0.0);
+            } else if (value instanceof Long) {
+                return ((Long) value).longValue();
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            throw new NumberFormatException();
+        }
+    };
+
+    private static final ValueExtractor INTEGER = new ValueExtractor() {
+        @Override
+        double extract(Object value) {
+            return value instanceof Integer ? ((Integer) value).intValue() : GENERIC.extract(value);
+        }
+    };
+
+    private static final ValueExtractor LONG = new ValueExtractor() {
+        @Override
+        double extract(Object value) {
+            return value instanceof Long ? ((Long) value).longValue() : GENERIC.extract(value);
+        }
+    };
+
+    private static final ValueExtractor DOUBLE = new ValueExtractor() {
+        @Override
+        double extract(Object value) {
+            return value instanceof Double ? ((Double) value).doubleValue() : GENERIC.extract(value);
+        }
+    };
+
+    private static final ValueExtractor BOOLEAN = new ValueExtractor() {
+        @Override
+        double extract(Object value) {
+            if (value instanceof Boolean) {
+                return ((Boolean) value ? 1.0 : 0.0);
+            }
+            return GENERIC.extract(value);
+        }
+    };
+
+    private static final ValueExtractor NUMBER = new ValueExtractor() {
+        @Override
+        double extract(Object value) {
+            return value instanceof Number ? ((Number) value).doubleValue() : GENERIC.extract(value);
+        }
+    };
+
+    private static final ValueExtractor STRING = new ValueExtractor() {
+        @Override
+        double extract(Object value) {
+            return value instanceof String ? Double.parseDouble((String) value) : GENERIC.extract(value);
+        }
+    };
+
+    private static final HashMap<String, ValueExtractor> EXTRACTORS_BY_TYPE = new HashMap<String, ValueExtractor>();
+
+    static {
+        EXTRACTORS_BY_TYPE.put("int", INTEGER);
+        EXTRACTORS_BY_TYPE.put("java.lang.Integer", INTEGER);
+        EXTRACTORS_BY_TYPE.put("long", LONG);
+        EXTRACTORS_BY_TYPE.put("java.lang.Long", LONG);
+        EXTRACTORS_BY_TYPE.put("double", DOUBLE);
+        EXTRACTORS_BY_TYPE.put("java.lang.Double", DOUBLE);
+        EXTRACTORS_BY_TYPE.put("boolean", BOOLEAN);
+        EXTRACTORS_BY_TYPE.put("java.lang.Boolean", BOOLEAN);
+        EXTRACTORS_BY_TYPE.put("float", NUMBER);
+        EXTRACTORS_BY_TYPE.put("java.lang.Float", NUMBER);
+        EXTRACTORS_BY_TYPE.put("short", NUMBER);
+        EXTRACTORS_BY_TYPE.put("java.lang.Short", NUMBER);
+        EXTRACTORS_BY_TYPE.put("byte", NUMBER);
+        EXTRACTORS_BY_TYPE.put("java.lang.Byte", NUMBER);
+        EXTRACTORS_BY_TYPE.put("java.math.BigInteger", NUMBER);
+        EXTRACTORS_BY_TYPE.put("java.math.BigDecimal", NUMBER);
+        EXTRACTORS_BY_TYPE.put("java.util.concurrent.atomic.AtomicInteger", NUMBER);
+        EXTRACTORS_BY_TYPE.put("java.util.concurrent.atomic.AtomicLong", NUMBER);
+        EXTRACTORS_BY_TYPE.put("java.lang.String", STRING);
+    }
+
+    /**
+     * @param type          the type of the attribute, as declared in its metadata
+     * @param conversions   the "values" conversions configured for the attribute, null or empty if there are none
+     * @return              the extractor of the values of the attribute
+     */
+    static ValueExtractor forAttribute(String type, Map<Object, Object> conversions) {
+        if (conversions != null && !conversions.isEmpty()) {
+            return new ConversionTable(conversions);
+        }
+        ValueExtractor extractor = EXTRACTORS_BY_TYPE.get(type);
+        return extractor != null ? extractor : GENERIC;
+    }
+
+    /**
+     * @throws NumberFormatException if the value can't be converted to a number
+     */
+    abstract double extract(Object value);
+
+    /**
+     * Convert a value read from a primitive array, without boxing it unless it has to be looked up.
+     */
+    double extract(long value) {
+        return value;
+    }
+
+    /**
+     * The "values" conversions of an attribute (e.g. of the states of an enum), whose converted values are parsed
+     * once. A value without a conversion takes the "default" one if there is one.
+     */
+    static final class ConversionTable extends ValueExtractor {
+        // Converted values, a Double unless the configured value is not a number
+        private final HashMap<Object, Object> table;
+        private final Object defaultValue;
+
+        ConversionTable(Map<Object, Object> conversions) {
+            this.table = new HashMap<Object, Object>(conversions.size() * 2);
+            for (Map.Entry<Object, Object> conversion : conversions.entrySet()) {
+                table.put(conversion.getKey(), parse(conversion.getValue()));
+            }
+            this.defaultValue = table.get("default");
+        }
+
+        private static Object parse(Object converted) {
+            try {
+                return GENERIC.extract(converted);
+            } catch (NumberFormatException e) {
+                // Reported on every read of a value converted to it, like any value that is not a number
+                return converted;
+            }
+        }
+
+        @Override
+        double extract(Object value) {
+            Object converted = table.get(value);
+            if (converted == null) {
+                converted = defaultValue;
+            }
+            if (converted instanceof Double) {
+                return ((Double) converted).doubleValue();
+            }
+            return GENERIC.extract(converted);
+        }
+
+        @Override
+        double extract(long value) {
+            return extract(Long.valueOf(value));
+        }
+    }
+}
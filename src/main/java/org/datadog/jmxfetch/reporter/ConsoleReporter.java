@@ -3,8 +3,8 @@ package org.datadog.jmxfetch.reporter;
 import com.google.common.base.Joiner;
 import org.datadog.jmxfetch.Instance;
 import org.datadog.jmxfetch.JMXAttribute;
+import org.datadog.jmxfetch.MetricBatch;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 
@@ -12,84 +12,24 @@ public class ConsoleReporter extends Reporter {
 
     private LinkedList<HashMap<String, Object>> metrics = new LinkedList<HashMap<String, Object>>();
     private LinkedList<HashMap<String, Object>> serviceChecks = new LinkedList<HashMap<String, Object>>();
+    private boolean recordingMetrics;
 
     @Override
     protected void sendMetricPoint(String metricName, double value, String[] tags) {
-        String tagString = "[" + Joiner.on(",").join(tags) + "]";
-        //System.out.println(tagString);
-
-        String prettyMetricName= metricName.replace("_","");
-
-        String[] nameArray = Arrays.stream(tags)
-                .filter(item -> item.startsWith("name:"))
-                .toArray(index -> new String[index]);
-        String[] indexArray= Arrays.stream(tags)
-                .filter(item -> item.startsWith("index:"))
-                .toArray(index -> new String[index]);
-
-        String name = "";
-        if (nameArray.length >0){
-            name = nameArray[0].split(":")[1];
-        }
-        String myIndex= "";
-        if (indexArray.length >0){
-            myIndex = indexArray[0].split(":")[1];
-        }
-
-        if (name != "") {
-            name = "." + name.toLowerCase();
-        }
-        if (myIndex!= "") {
-            myIndex = "." + myIndex.toLowerCase();
-        }
-
-
-        /*
-        if (prettyMetricName.split("\\.").length ==2){
-            prettyMetricName = prettyMetricName + ".value";
-        }
-        */
-
-        String[] jmxDomainArray= Arrays.stream(tags)
-                .filter(item -> item.startsWith("jmx_domain:"))
-                .toArray(index -> new String[index]);
-
-        /*
-        String jmxDomain = "";
-        if (jmxDomainArray.length >0){
-            jmxDomain= jmxDomainArray[0].split(":")[1];
-            String[] domainArray = jmxDomain.split("\\.") ;
-            jmxDomain= String.join(".",Arrays.copyOfRange(domainArray,2,domainArray.length));
-        }
-
-        if (prettyMetricName.split("\\.").length ==2){
-            prettyMetricName = prettyMetricName + ".value";
-        }
+        System.out.println("SET " + getDimensionId(metricName, tags) + " = " + String.format("%10f", (float) value));
+        recordMetric(metricName, value, tags);
+    }
 
+    @Override
+    protected void sendMetricPoint(MetricBatch metrics, int index, double value) {
+        line.append(getMetricOutput(metrics, index).set).appendDecimal((float) value).writeLine(System.out);
+        recordMetric(metrics.getAlias(index), value, metrics.getTags(index));
+    }
 
-        String[] domainArray = jmxDomain.split("\\.") ;
-        String[] nameArray = prettyMetricName.split("\\.") ;
-        int j=0;
-        for (int i = 0 ; i < nameArray.length ; i++){
-            if (domainArray.length > i && domainArray[i].equals(nameArray[i])){
-                j++;
-            }
+    private void recordMetric(String metricName, double value, String[] tags) {
+        if (!recordingMetrics) {
+            return;
         }
-
-        prettyMetricName = jmxDomain + "." +String.join(".", Arrays.copyOfRange(nameArray, j, nameArray.length));
-        */
-
-        String jmxDomain = String.join(".",jmxDomainArray).split(":")[1];
-
-        prettyMetricName = prettyMetricName.replace(jmxDomain+".", "");
-
-
-        //System.out.println(metricName + tagString + " - " + System.currentTimeMillis() / 1000 + " = " + value);
-        //System.out.println("SET " + prettyMetricName +  " = " + String.format("%10f", (float)value));
-        //System.out.println("Pretty metric name: "+prettyMetricName);
-
-        System.out.println("SET " + jmxDomain  + myIndex + name +  "." + prettyMetricName +  " = " + String.format("%10f", (float)value));
-
         HashMap<String, Object> m = new HashMap<String, Object>();
         m.put("name", metricName);
         m.put("value", value);
@@ -97,6 +37,14 @@ public class ConsoleReporter extends Reporter {
         metrics.add(m);
     }
 
+    /**
+     * Keep the metrics sent until they are fetched with getMetrics. They are not kept by default, so that
+     * a long running reporter doesn't accumulate them.
+     */
+    public void setRecordingMetrics(boolean recordingMetrics) {
+        this.recordingMetrics = recordingMetrics;
+    }
+
     public LinkedList<HashMap<String, Object>> getMetrics() {
         LinkedList<HashMap<String, Object>> returnedMetrics = new LinkedList<HashMap<String, Object>>();
         for (HashMap<String, Object> map : metrics) {
@@ -0,0 +1,111 @@
+package org.datadog.jmxfetch.reporter;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * A line of output built in a reusable buffer and written as bytes, so that reporting the metrics of a collection
+ * doesn't allocate strings. The constant parts of the lines are encoded once by the caller.
+ */
+class LineBuffer {
+    private static final long MAX_DECIMAL = Long.MAX_VALUE / 10;
+
+    private byte[] bytes = new byte[256];
+    private int length;
+    // Digits of a number, written backward
+    private final byte[] digits = new byte[20];
+
+    static byte[] encode(String s) {
+        return s.getBytes();
+    }
+
+    LineBuffer append(byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, bytes, length, b.length);
+        length += b.length;
+        return this;
+    }
+
+    LineBuffer append(char c) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) c;
+        return this;
+    }
+
+    LineBuffer append(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return append(encode(Long.toString(value)));
+            }
+            append('-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        ensureCapacity(count);
+        while (count > 0) {
+            bytes[length++] = digits[--count];
+        }
+        return this;
+    }
+
+    /**
+     * Append a value the way String.format("%10f", value) does: six decimals, right aligned on ten characters.
+     */
+    LineBuffer appendDecimal(float value) {
+        double exact = value;
+        // A float times 10^6 is exact in a double, so is the rounding of its sixth decimal
+        double scaled = Math.abs(exact) * 1000000;
+        if (Double.isNaN(scaled) || scaled >= MAX_DECIMAL) {
+            return append(encode(String.format("%10f", value)));
+        }
+        long units = (long) scaled;
+        if (scaled - units >= 0.5) {
+            units++;
+        }
+        boolean negative = Double.compare(exact, 0.0) < 0;
+
+        // Integer part, at least one digit, then the six decimals
+        int count = 0;
+        for (int i = 0; i < 6; i++) {
+            digits[count++] = (byte) ('0' + units % 10);
+            units /= 10;
+        }
+        digits[count++] = '.';
+        do {
+            digits[count++] = (byte) ('0' + units % 10);
+            units /= 10;
+        } while (units > 0);
+        if (negative) {
+            digits[count++] = '-';
+        }
+
+        ensureCapacity(Math.max(count, 10));
+        for (int i = count; i < 10; i++) {
+            bytes[length++] = ' ';
+        }
+        while (count > 0) {
+            bytes[length++] = digits[--count];
+        }
+        return this;
+    }
+
+    /**
+     * Terminate the line and write it.
+     */
+    void writeLine(PrintStream out) {
+        append('\n');
+        out.write(bytes, 0, length);
+        length = 0;
+    }
+
+    private void ensureCapacity(int count) {
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+        }
+    }
+}
@@ -5,200 +5,185 @@ import org.apache.log4j.Logger;
 import org.datadog.jmxfetch.App;
 import org.datadog.jmxfetch.Instance;
 import org.datadog.jmxfetch.JMXAttribute;
+import org.datadog.jmxfetch.MetricBatch;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public abstract class Reporter {
 
     private final static Logger LOGGER = Logger.getLogger(App.class.getName());
     public static final String VALUE = "value";
+    private static final String BEGIN = "BEGIN ";
+    private static final byte[] END = LineBuffer.encode("END");
+    private static final long NO_UPDATE = Long.MIN_VALUE;
 
-    private HashMap<String, Integer> serviceCheckCount;
-    private HashMap<String, HashMap<String, HashMap<String, Object>>> ratesAggregator = new HashMap<String, HashMap<String, HashMap<String, Object>>>();
+    // Striped by check name so instances collected concurrently don't step on each other
+    private ConcurrentHashMap<String, Integer> serviceCheckCount;
+    // Used by the thread reporting the metrics, under the lock of the standard output
+    final LineBuffer line = new LineBuffer();
 
     public Reporter() {
-        this.serviceCheckCount = new HashMap<String, Integer>();
+        this.serviceCheckCount = new ConcurrentHashMap<String, Integer>();
     }
 
-    String generateId(HashMap<String, Object> metric) {
-        String key = (String) metric.get("alias");
-        for (String tag : (String[]) metric.get("tags")) {
-            key += tag;
-        }
-        return key;
-    }
-
-    public void clearRatesAggregator(String instanceName) {
-        ratesAggregator.put(instanceName, new HashMap<String, HashMap<String, Object>>());
-    }
-
-    public void sendMetrics(LinkedList<HashMap<String, Object>> metrics, String instanceName) {
-        HashMap<String, HashMap<String, Object>> instanceRatesAggregator;
-        if (ratesAggregator.containsKey(instanceName)) {
-            instanceRatesAggregator = ratesAggregator.get(instanceName);
-        } else {
-            instanceRatesAggregator = new HashMap<String, HashMap<String, Object>>();
-        }
-
+    public void sendMetrics(MetricBatch metrics, String instanceName) {
         int loopCounter = App.getLoopCounter();
 
-        String sendingMessage = "Instance " + instanceName + " is sending " + metrics.size()
-                + " metrics to the metrics reporter during collection #" + loopCounter;
+        // The message is only built when logged
         if (loopCounter <= 5 || loopCounter % 10 == 0) {
-            LOGGER.info(sendingMessage);
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info(getSendingMessage(metrics, instanceName, loopCounter));
+            }
             if (loopCounter == 5) {
                 LOGGER.info("Next collections will be logged only every 10 collections.");
             }
-        } else {
-            LOGGER.debug(sendingMessage);
+        } else if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(getSendingMessage(metrics, instanceName, loopCounter));
         }
 
-        for (HashMap<String, Object> m : metrics) {
-            // We need to edit metrics for legacy reasons (rename metrics, etc)
-            HashMap<String, Object> metric = new HashMap<String, Object>(m);
-
-            Double currentValue = (Double) metric.get(VALUE);
-            if (currentValue.isNaN() || currentValue.isInfinite()) {
-                continue;
-            }
-
-            String metricComplexity = (String) metric.get("complexity");
-            String metricName = (String) metric.get("alias");
-            String metricType = (String) metric.get("metric_type");
-            String[] tags = Arrays.asList((String[]) metric.get("tags")).toArray(new String[0]);
-
-            //System.out.println(Arrays.toString((String[]) metric.get("tags")));
-
-            String[] nameArray = Arrays.stream(tags)
-                    .filter(item -> item.startsWith("name:"))
-                    .toArray(index -> new String[index]);
-
-            String[] typeArray = Arrays.stream(tags)
-                    .filter(item -> item.startsWith("type:"))
-                    .toArray(index -> new String[index]);
-
-            String[] jmxDomainArray= Arrays.stream(tags)
-                    .filter(item -> item.startsWith("jmx_domain:"))
-                    .toArray(index -> new String[index]);
-
-            String[] indexArray= Arrays.stream(tags)
-                    .filter(item -> item.startsWith("index:"))
-                    .toArray(index -> new String[index]);
-
-            /*
-            String jmxDomain = "";
-            if (jmxDomainArray.length >0){
-                jmxDomain= jmxDomainArray[0].split(":")[1];
-                String[] domainArray = jmxDomain.split("\\.") ;
-                jmxDomain= String.join(".",Arrays.copyOfRange(domainArray,2,domainArray.length));
-            }
-            */
-
-            String name = "";
-            if (nameArray.length >0){
-                name = nameArray[0].split(":")[1];
-            }
+        // Hold the output for the whole batch so that chart definitions written by other threads
+        // (reconnections, bean refreshes) can't end up between a BEGIN and its END
+        synchronized (System.out) {
+            sendMetrics(metrics);
+        }
+    }
 
-            String myIndex= "";
-            if (indexArray.length >0){
-                myIndex = indexArray[0].split(":")[1];
-            }
+    private static String getSendingMessage(MetricBatch metrics, String instanceName, int loopCounter) {
+        return "Instance " + instanceName + " is sending " + metrics.size()
+                + " metrics to the metrics reporter during collection #" + loopCounter;
+    }
 
-            String type = "";
-            if (typeArray.length >0){
-                type = typeArray[0].split(":")[1];
+    private void sendMetrics(MetricBatch metrics) {
+        PrintStream out = System.out;
+        long updateTime = System.nanoTime();
+        for (int i = 0; i < metrics.size(); i++) {
+            double currentValue = metrics.getValue(i);
+            if (Double.isNaN(currentValue) || Double.isInfinite(currentValue)) {
+                continue;
             }
 
-            final String finalType= type;
-
-            String[] typeTypeArray = Arrays.stream(tags)
-                    .filter(item -> item.startsWith(finalType))
-                    .toArray(index -> new String[index]);
-
-            String typeType = "";
-            if (type!="" && typeTypeArray.length > 0){
-                typeType = typeTypeArray[0].split(":")[1];
+            MetricOutput output = getMetricOutput(metrics, i);
+            if (output.begin != null) {
+                // BEGIN comes with the microseconds elapsed since the previous update of the chart, so that netdata
+                // doesn't have to interpolate the points. The first update has no duration.
+                line.append(output.begin);
+                if (output.lastUpdate != NO_UPDATE) {
+                    line.append(' ').append((updateTime - output.lastUpdate) / 1000);
+                }
+                output.lastUpdate = updateTime;
+                line.writeLine(out);
             }
 
-            if (name != "") {
-                name = "." + name.toLowerCase();
-            }
-            if (type != "") {
-                type = "." + type.toLowerCase();
-            }
-            if (typeType != "") {
-                typeType = "." + typeType.toLowerCase();
+            // StatsD doesn't support rate metrics so we need to compute them. The previous sample of a metric is kept
+            // with its slot, so it goes away with the metric or its instance. The first sample has no rate.
+            if (!output.gauge) {
+                double rate = metrics.updateRate(i);
+                if (!Double.isNaN(rate) && !Double.isInfinite(rate)) {
+                    sendMetricPoint(metrics, i, rate);
+                }
+            } else { // The metric is a gauge
+                sendMetricPoint(metrics, i, currentValue);
             }
 
-            if (myIndex!= "") {
-                myIndex = "." + myIndex.toLowerCase();
+            if (output.endsChart) {
+                line.append(END).writeLine(out);
             }
+        }
+    }
 
+    /**
+     * @return      the output of a metric, derived from its alias and tags on its first report
+     */
+    MetricOutput getMetricOutput(MetricBatch metrics, int index) {
+        MetricOutput output = (MetricOutput) metrics.getOutput(index);
+        if (output == null) {
+            output = new MetricOutput(metrics.getAlias(index), metrics.getMetricType(index), metrics.getTags(index),
+                    metrics.getComplexSize(index));
+            metrics.setOutput(index, output);
+        }
+        return output;
+    }
 
-            String prettyMetricName= metricName.replace("_","");
-
-            String jmxDomain = String.join(".",jmxDomainArray).split(":")[1];
-
-            if (metricComplexity == "complex"){
-                //System.out.println(prettyMetricName);
-                int lastIndex= prettyMetricName.lastIndexOf(".");
-                int length = prettyMetricName.length();
-
-                prettyMetricName = prettyMetricName.substring(0,lastIndex);
-                if (metricName.replace("_","").substring(lastIndex+1, length).equals("0")) {
-                    prettyMetricName = prettyMetricName.replace(jmxDomain + ".", "");
-                    System.out.println("BEGIN " + jmxDomain + type + typeType + "-" + jmxDomain + myIndex + name + "." + prettyMetricName);
+    /**
+     * The value of a tag, up to its next colon if any, or an empty string if the metric doesn't have the tag.
+     */
+    private static String getTagValue(String[] tags, String prefix) {
+        for (String tag : tags) {
+            if (tag.startsWith(prefix)) {
+                int start = tag.indexOf(':');
+                if (start < 0) {
+                    return "";
                 }
-            }else {
-                prettyMetricName = prettyMetricName.replace(jmxDomain + ".", "");
-
-                //System.out.println("Pretty metric name: "+  prettyMetricName);
-
-                System.out.println("BEGIN " + jmxDomain + type + typeType + "-" + jmxDomain + myIndex + name + "." + prettyMetricName);
+                int end = tag.indexOf(':', start + 1);
+                return end < 0 ? tag.substring(start + 1) : tag.substring(start + 1, end);
             }
-            // StatsD doesn't support rate metrics so we need to have our own aggregator to compute rates
-            if (!"gauge".equals(metricType)) {
-                String key = generateId(metric);
-                if (!instanceRatesAggregator.containsKey(key)) {
-                    HashMap<String, Object> rateInfo = new HashMap<String, Object>();
-                    rateInfo.put("ts", System.currentTimeMillis());
-                    rateInfo.put(VALUE, currentValue);
-                    instanceRatesAggregator.put(key, rateInfo);
-                    continue;
-                }
+        }
+        return "";
+    }
 
-                long oldTs = (Long) instanceRatesAggregator.get(key).get("ts");
-                double oldValue = (Double) instanceRatesAggregator.get(key).get(VALUE);
+    private static String getChartProperty(String[] tags, String prefix) {
+        String value = getTagValue(tags, prefix);
+        return value.isEmpty() ? "" : "." + value.toLowerCase();
+    }
 
-                long now = System.currentTimeMillis();
-                double rate = 1000 * (currentValue - oldValue) / (now - oldTs);
+    /**
+     * @return      the id of the dimension of a metric in its chart
+     */
+    static String getDimensionId(String metricName, String[] tags) {
+        String jmxDomain = getTagValue(tags, "jmx_domain:");
+        String prettyMetricName = metricName.replace("_", "").replace(jmxDomain + ".", "");
+        return jmxDomain + getChartProperty(tags, "index:") + getChartProperty(tags, "name:") + "." + prettyMetricName;
+    }
 
-                if (!Double.isNaN(rate) && !Double.isInfinite(rate)) {
-                    sendMetricPoint(metricName, rate, tags);
+    /**
+     * What is written for a metric besides its value, kept with the slot of the metric in the registry of its instance.
+     */
+    static class MetricOutput {
+        // "BEGIN <chart id>" if the metric is the first one of its chart, null otherwise
+        final byte[] begin;
+        final boolean endsChart;
+        // "SET <dimension id> = "
+        final byte[] set;
+        final boolean gauge;
+        // Time (System.nanoTime) of the last update of the chart of the metric
+        long lastUpdate = NO_UPDATE;
+
+        MetricOutput(String metricName, String metricType, String[] tags, int complexSize) {
+            String jmxDomain = getTagValue(tags, "jmx_domain:");
+            String type = getTagValue(tags, "type:");
+            String typeType = type.isEmpty() ? "" : getTagValue(tags, type);
+            String chartPrefix = jmxDomain + (type.isEmpty() ? "" : "." + type.toLowerCase())
+                    + (typeType.isEmpty() ? "" : "." + typeType.toLowerCase())
+                    + "-" + jmxDomain + getChartProperty(tags, "index:") + getChartProperty(tags, "name:") + ".";
+
+            String prettyMetricName = metricName.replace("_", "");
+            boolean beginsChart = true;
+            boolean endsChart = true;
+            if (complexSize > 0) {
+                // The chart of a complex attribute begins with its sub-attribute 0 and ends with the last one
+                int lastIndex = prettyMetricName.lastIndexOf('.');
+                beginsChart = lastIndex >= 0 && prettyMetricName.substring(lastIndex + 1).equals("0");
+                if (beginsChart) {
+                    prettyMetricName = prettyMetricName.substring(0, lastIndex);
                 }
-
-                instanceRatesAggregator.get(key).put("ts", now);
-                instanceRatesAggregator.get(key).put(VALUE, currentValue);
-            } else { // The metric is a gauge
-                sendMetricPoint(metricName, currentValue, tags);
-            }
-
-            if (metricComplexity == "complex"){
-                int metricSubSize= (int) metric.get("size");
-                int lastIndex= metricName.lastIndexOf(".");
-                int size = metricName.length();
-                if (Integer.parseInt(metricName.substring(lastIndex+1, size)) == metricSubSize-1) {
-                    System.out.println("END");
+                String subAttribute = metricName.substring(metricName.lastIndexOf('.') + 1);
+                try {
+                    endsChart = Integer.parseInt(subAttribute) == complexSize - 1;
+                } catch (NumberFormatException e) {
+                    endsChart = false;
                 }
-            }else {
-                System.out.println("END");
             }
-        }
 
-        ratesAggregator.put(instanceName, instanceRatesAggregator);
+            this.begin = beginsChart
+                    ? LineBuffer.encode(BEGIN + chartPrefix + prettyMetricName.replace(jmxDomain + ".", ""))
+                    : null;
+            this.endsChart = endsChart;
+            this.set = LineBuffer.encode("SET " + getDimensionId(metricName, tags) + " = ");
+            this.gauge = "gauge".equals(metricType);
+        }
     }
 
     public void sendServiceCheck(String checkName, String status, String message, String[] tags){
@@ -209,8 +194,7 @@ public abstract class Reporter {
     }
 
     public void incrementServiceCheckCount(String checkName){
-        int scCount = this.getServiceCheckCount(checkName);
-        this.getServiceCheckCountMap().put(checkName, new Integer(scCount+1));
+        this.serviceCheckCount.merge(checkName, 1, Integer::sum);
     }
 
     public int getServiceCheckCount(String checkName){
@@ -222,7 +206,7 @@ public abstract class Reporter {
         this.serviceCheckCount.put(checkName, new Integer(0));
     }
 
-    protected HashMap<String, Integer> getServiceCheckCountMap(){
+    protected Map<String, Integer> getServiceCheckCountMap(){
         return this.serviceCheckCount;
     }
 
@@ -234,6 +218,13 @@ public abstract class Reporter {
 
     protected abstract void sendMetricPoint(String metricName, double value, String[] tags);
 
+    /**
+     * Send a metric of a batch. Reporters able to write it without allocating override this method.
+     */
+    protected void sendMetricPoint(MetricBatch metrics, int index, double value) {
+        sendMetricPoint(metrics.getAlias(index), value, metrics.getTags(index));
+    }
+
     protected abstract void doSendServiceCheck(String checkName, String status, String message, String[] tags);
 
     public abstract void displayMetricReached();
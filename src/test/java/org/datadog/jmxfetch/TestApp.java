@@ -1,13 +1,17 @@
 package org.datadog.jmxfetch;
 
+import org.apache.commons.io.FileUtils;
 import org.datadog.jmxfetch.reporter.ConsoleReporter;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -408,4 +412,212 @@ public class TestApp extends TestCommon {
         assertMetric("test.counter", 0.98, 1, commonTags, 5);
         assertCoverage();
     }
+
+    @Test
+    public void testNextCollectionTime() throws Exception {
+        // Collections are aligned on multiples of the check period
+        assertEquals(16000, App.getNextCollectionTime(15000, 15300, 1000));
+        assertEquals(16000, App.getNextCollectionTime(15250, 15300, 1000));
+
+        // Missed collections are skipped, the next one is never due right away
+        assertEquals(18000, App.getNextCollectionTime(15000, 17500, 1000));
+        assertEquals(17000, App.getNextCollectionTime(15000, 16000, 1000));
+
+        // A clock going backward doesn't hold the collection back
+        assertEquals(11000, App.getNextCollectionTime(15000, 10500, 1000));
+    }
+
+    /**
+     * Run collections until the expected number of metrics is collected.
+     */
+    private void runUntilMetricsCount(int expectedCount) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            run();
+            if (getMetrics().size() == expectedCount) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        assertEquals(expectedCount, getMetrics().size());
+    }
+
+    @Test
+    public void testBeanRegistrationNotifications() throws Exception {
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=BeanNotifications,name=first");
+        initApplication("jmx_bean_notifications.yaml");
+
+        run();
+        assertEquals(1, getMetrics().size());
+
+        // A new bean is collected without waiting for the next refresh of the bean list
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName second = new ObjectName("org.datadog.jmxfetch.test:type=BeanNotifications,name=second");
+        server.registerMBean(new SimpleTestJavaApp(), second);
+        try {
+            runUntilMetricsCount(2);
+        } finally {
+            server.unregisterMBean(second);
+        }
+
+        // And a bean that disappeared isn't collected anymore
+        runUntilMetricsCount(1);
+    }
+
+    @Test
+    public void testRefreshKeepsExistingAttributes() throws Exception {
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=RefreshBeans,name=first");
+        // The bean list is refreshed at every collection after a second
+        initApplication("jmx_refresh_beans.yaml");
+        run();
+        assertEquals(1, getMetrics().size());
+
+        Thread.sleep(1100);
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=RefreshBeans,name=second");
+
+        // The new bean is discovered in the background, only its chart is defined again
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output, true));
+        try {
+            runUntilMetricsCount(2);
+        } finally {
+            System.setOut(stdout);
+        }
+
+        int charts = 0;
+        for (String line : output.toString().split("\n")) {
+            if (line.startsWith("CHART ")) {
+                assertTrue(line.contains(".second."));
+                charts++;
+            }
+        }
+        assertEquals(1, charts);
+    }
+
+    @Test
+    public void testSlowInstanceDoesntHoldBackOthers() throws Exception {
+        // Reading the slow instance takes twice the check period
+        registerMBean(new TestAttributeReads.SlowApp(), "org.datadog.jmxfetch.test:type=SlowApp");
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=FastApp");
+        initApplication("jmx_slow_instance.yaml", "--check_period", "1000");
+
+        // The other instances are reported at the end of the check period
+        long start = System.currentTimeMillis();
+        run();
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        LinkedList<HashMap<String, Object>> metrics = getMetrics();
+        assertEquals(1, metrics.size());
+        assertEquals("fast", metrics.getFirst().get("name"));
+        assertEquals(2, app.getInstances().size());
+
+        // The slow instance is reported by the iteration its collection completes in
+        Thread.sleep(1500);
+        run();
+        Set<String> names = new HashSet<String>();
+        for (HashMap<String, Object> metric : getMetrics()) {
+            names.add((String) metric.get("name"));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("fast", "slow")), names);
+    }
+
+    @Test
+    public void testRebindAfterDisconnection() throws Exception {
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=BeanNotifications,name=first");
+        initApplication("jmx_bean_notifications.yaml");
+        run();
+        assertEquals(1, getMetrics().size());
+
+        // The plan is rebound to a new connection to the same JVM, so its rates are kept
+        Instance instance = app.getInstances().get(0);
+        instance.disconnect();
+        assertTrue(instance.rebind());
+        run();
+        assertEquals(1, getMetrics().size());
+
+        // A bean of the plan disappeared while disconnected, the beans must be discovered again
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName second = new ObjectName("org.datadog.jmxfetch.test:type=BeanNotifications,name=second");
+        server.registerMBean(new SimpleTestJavaApp(), second);
+        try {
+            runUntilMetricsCount(2);
+            instance.disconnect();
+        } finally {
+            server.unregisterMBean(second);
+        }
+        try {
+            instance.rebind();
+            fail("The plan shouldn't be rebound");
+        } catch (InstanceNotFoundException e) {
+            assertEquals(second.toString(), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testPersistedPlan() throws Exception {
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=PersistPlan,name=first");
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=PersistPlan,name=second");
+        String confdDirectory = new File(Thread.currentThread().getContextClassLoader().getResource("jmx_persist_plan.yaml").getPath()).getParent();
+        File planFile = new File(new File(confdDirectory, "plans"), "jmx_persist_plan-jmx_test_instance.plan");
+        planFile.delete();
+
+        try {
+            // The plan is saved once the beans are discovered
+            initApplication("jmx_persist_plan.yaml");
+            run();
+            assertEquals(2, getMetrics().size());
+            assertTrue(planFile.exists());
+
+            // Leave the second bean out of the plan, the next start only knows about the first bean
+            StringBuilder plan = new StringBuilder();
+            for (String line : FileUtils.readLines(planFile, "UTF-8")) {
+                if (!line.contains("name=second")) {
+                    plan.append(line).append('\n');
+                }
+            }
+            FileUtils.writeStringToFile(planFile, plan.toString(), "UTF-8");
+
+            PrintStream stdout = System.out;
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(output, true));
+            try {
+                initApplication("jmx_persist_plan.yaml");
+            } finally {
+                System.setOut(stdout);
+            }
+            int charts = 0;
+            for (String line : output.toString().split("\n")) {
+                if (line.startsWith("CHART ")) {
+                    assertTrue(line.contains(".first."));
+                    charts++;
+                }
+            }
+            assertEquals(1, charts);
+
+            // Until the bean list discovered in the background is reconciled with the plan
+            runUntilMetricsCount(2);
+        } finally {
+            planFile.delete();
+            planFile.getParentFile().delete();
+        }
+    }
+
+    @Test
+    public void testProgressiveDiscovery() throws Exception {
+        for (int i = 0; i < 250; i++) {
+            registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=ProgressiveDiscovery,name=bean" + i);
+        }
+
+        // With such a short check period, a single batch of beans is matched at a time
+        initApplication("jmx_progressive_discovery.yaml", "--check_period", "1");
+        Instance instance = app.getInstances().get(0);
+        assertTrue(instance.isDiscovering());
+
+        // Every collection matches a batch more, and collects all the beans matched so far
+        run();
+        assertEquals(200, getMetrics().size());
+        assertTrue(instance.isDiscovering());
+        run();
+        assertEquals(250, getMetrics().size());
+        assertFalse(instance.isDiscovering());
+    }
 }
@@ -0,0 +1,532 @@
+package org.datadog.jmxfetch;
+
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TestAttributeReads extends TestCommon {
+
+    /**
+     * A connection to the platform MBean server that counts the number of attribute reads.
+     */
+    static class CountingConnection extends Connection {
+        private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        int getAttributeCount = 0;
+
+        @Override
+        public Object getAttribute(ObjectName objectName, String attributeName) throws AttributeNotFoundException,
+                InstanceNotFoundException, MBeanException, ReflectionException, IOException {
+            getAttributeCount++;
+            return server.getAttribute(objectName, attributeName);
+        }
+    }
+
+    public interface SlowAppMBean {
+        int getFast();
+
+        int getSlow() throws InterruptedException;
+    }
+
+    /**
+     * An application whose Slow attribute hangs for a while, like a server in a long GC pause.
+     */
+    public static class SlowApp implements SlowAppMBean {
+        public int getFast() {
+            return 1;
+        }
+
+        public int getSlow() throws InterruptedException {
+            Thread.sleep(2000);
+            return 2;
+        }
+    }
+
+    public interface FlakyAppMBean {
+        int getFine();
+
+        int getFlaky();
+
+        Object getUnmarshallable();
+    }
+
+    /**
+     * An application whose Flaky attribute fails on demand, and whose Unmarshallable attribute
+     * cannot be sent over the connection.
+     */
+    public static class FlakyApp implements FlakyAppMBean {
+        volatile boolean failing = true;
+
+        public int getFine() {
+            return 1;
+        }
+
+        public int getFlaky() {
+            if (failing) {
+                throw new IllegalStateException("Flaky");
+            }
+            return 2;
+        }
+
+        public Object getUnmarshallable() {
+            return new Object();
+        }
+    }
+
+    public interface ArrayAppMBean {
+        long[] getItems();
+    }
+
+    /**
+     * An application whose long[] attribute changes length.
+     */
+    public static class ArrayApp implements ArrayAppMBean {
+        volatile long[] items = {1, 2, 3};
+
+        public long[] getItems() {
+            return items;
+        }
+    }
+
+    /**
+     * A bean counting how its attributes are read, whose bulk reads fail on demand.
+     */
+    public static class BulkApp implements DynamicMBean {
+        private final String[] attributes;
+        volatile int getAttributeCount = 0;
+        volatile int getAttributesCount = 0;
+        volatile boolean failingBulkReads = false;
+
+        BulkApp() {
+            this("First", "Second", "Third");
+        }
+
+        BulkApp(String... attributes) {
+            this.attributes = attributes;
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            getAttributeCount++;
+            int index = Arrays.asList(this.attributes).indexOf(attribute);
+            if (index < 0) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return index + 1;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            getAttributesCount++;
+            if (failingBulkReads) {
+                throw new IllegalStateException("Bulk reads are not supported");
+            }
+            AttributeList values = new AttributeList();
+            for (String attribute : attributes) {
+                values.add(new Attribute(attribute, Arrays.asList(this.attributes).indexOf(attribute) + 1));
+            }
+            return values;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[this.attributes.length];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = new MBeanAttributeInfo(this.attributes[i], "int", null, true, false, false);
+            }
+            return new MBeanInfo(BulkApp.class.getName(), null, attributes, null, null, null);
+        }
+
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException();
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @return      the values of the metrics reported for an instance, by metric name
+     */
+    private static HashMap<String, Object> getInstanceMetrics(LinkedList<HashMap<String, Object>> metrics, String instanceName) {
+        HashMap<String, Object> instanceMetrics = new HashMap<String, Object>();
+        for (HashMap<String, Object> metric : metrics) {
+            if (Arrays.asList((String[]) metric.get("tags")).contains("instance:" + instanceName)) {
+                instanceMetrics.put((String) metric.get("name"), metric.get("value"));
+            }
+        }
+        return instanceMetrics;
+    }
+
+    private static MBeanAttributeInfo getAttributeInfo(ObjectName beanName, String attributeName) throws Exception {
+        for (MBeanAttributeInfo attributeInfo : ManagementFactory.getPlatformMBeanServer().getMBeanInfo(beanName).getAttributes()) {
+            if (attributeName.equals(attributeInfo.getName())) {
+                return attributeInfo;
+            }
+        }
+        fail("Cannot find attribute " + attributeName + " on bean " + beanName);
+        return null;
+    }
+
+    private static MetricBatch collect(JMXAttribute attribute) throws Exception {
+        MetricBatch metrics = new MetricBatch(attribute.getRegistry());
+        attribute.collect(metrics);
+        return metrics;
+    }
+
+    private static Configuration getDomainConfiguration(String domain) {
+        LinkedHashMap<String, Object> include = new LinkedHashMap<String, Object>();
+        include.put("domain", domain);
+        LinkedHashMap<String, Object> conf = new LinkedHashMap<String, Object>();
+        conf.put("include", include);
+        return new Configuration(conf);
+    }
+
+    @Test
+    public void testBulkReads() throws Exception {
+        BulkApp bulkApp = new BulkApp();
+        registerMBean(bulkApp, "org.datadog.jmxfetch.test:type=BulkApp");
+        // Two instances collecting the same bean, the second one reading its attributes one by one
+        initApplication("jmx_bulk_reads.yaml");
+
+        HashMap<String, Object> expected = new HashMap<String, Object>();
+        expected.put("first", 1.0);
+        expected.put("second", 2.0);
+        expected.put("third", 3.0);
+
+        // A single getAttributes call for the bean, for the same metrics
+        bulkApp.getAttributeCount = 0;
+        bulkApp.getAttributesCount = 0;
+        run();
+        LinkedList<HashMap<String, Object>> metrics = getMetrics();
+        assertEquals(expected, getInstanceMetrics(metrics, "bulk_instance"));
+        assertEquals(expected, getInstanceMetrics(metrics, "single_instance"));
+        assertEquals(1, bulkApp.getAttributesCount);
+        assertEquals(3, bulkApp.getAttributeCount);
+
+        // A bean whose bulk read fails is read one attribute at a time
+        bulkApp.failingBulkReads = true;
+        bulkApp.getAttributeCount = 0;
+        bulkApp.getAttributesCount = 0;
+        run();
+        metrics = getMetrics();
+        assertEquals(expected, getInstanceMetrics(metrics, "bulk_instance"));
+        assertEquals(expected, getInstanceMetrics(metrics, "single_instance"));
+        assertEquals(1, bulkApp.getAttributesCount);
+        assertEquals(6, bulkApp.getAttributeCount);
+        assertEquals(2, app.getInstances().size());
+    }
+
+    /**
+     * @return      the bytes allocated by the current thread in the given number of collections of the instance
+     */
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean allocations, Instance instance, int cycles)
+            throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            instance.getMetrics();
+        }
+        return allocations.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    @Test
+    public void testBulkReadsAllocationsDontGrowWithAttributes() throws Exception {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+
+        String[] attributes = new String[50];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = "Attribute" + i;
+        }
+        registerMBean(new BulkApp("Attribute0"), "org.datadog.jmxfetch.test:type=FewAttributes");
+        registerMBean(new BulkApp(attributes), "org.datadog.jmxfetch.test:type=ManyAttributes");
+        initApplication("jmx_bulk_reads_allocations.yaml");
+        run();
+        assertEquals(1 + attributes.length, getMetrics().size());
+
+        Instance fewAttributes = null;
+        Instance manyAttributes = null;
+        for (Instance instance : app.getInstances()) {
+            if (instance.getName().equals("few_attributes_instance")) {
+                fewAttributes = instance;
+            } else {
+                manyAttributes = instance;
+            }
+        }
+
+        // The getAttributes call itself allocates its task and the values it returns: only the allocations of the
+        // collection around it are measured, as the difference between a bean of 1 attribute and one of 50
+        int cycles = 1000;
+        getAllocatedBytes(allocations, fewAttributes, cycles);
+        getAllocatedBytes(allocations, manyAttributes, cycles);
+        long fewAllocated = getAllocatedBytes(allocations, fewAttributes, cycles);
+        long manyAllocated = getAllocatedBytes(allocations, manyAttributes, cycles);
+
+        assertTrue("Allocated " + fewAllocated + " bytes for 1 attribute and " + manyAllocated + " bytes for "
+                + attributes.length + " attributes in " + cycles + " collections",
+                (manyAllocated - fewAllocated) / cycles < attributes.length);
+    }
+
+    @Test
+    public void testComplexAttributeIsReadOncePerCycle() throws Exception {
+        // A map attribute with as many entries as a histogram has buckets
+        SimpleTestJavaApp testApp = new SimpleTestJavaApp();
+        testApp.populateHashMap(90);
+        registerMBean(testApp, "org.datadog.jmxfetch.test:type=AttributeReads");
+        ObjectName beanName = new ObjectName("org.datadog.jmxfetch.test:type=AttributeReads");
+
+        CountingConnection connection = new CountingConnection();
+        JMXComplexAttribute attribute = new JMXComplexAttribute(getAttributeInfo(beanName, "Hashmap"),
+                new BeanDescriptor(beanName, "jmx_test_instance", null, false), connection, new AttributeRegistry());
+        Configuration conf = getDomainConfiguration("org.datadog.jmxfetch.test");
+        assertTrue(attribute.match(conf));
+        attribute.setMatchingConf(conf);
+
+        // Two collection cycles: one read each, whatever the number of sub-attributes
+        for (int cycle = 1; cycle <= 2; cycle++) {
+            connection.getAttributeCount = 0;
+            MetricBatch metrics = collect(attribute);
+
+            assertEquals(93, metrics.size());
+            assertEquals(1, connection.getAttributeCount);
+        }
+    }
+
+    @Test
+    public void testLongArrayItems() throws Exception {
+        ArrayApp arrayApp = new ArrayApp();
+        registerMBean(arrayApp, "org.datadog.jmxfetch.test:type=ArrayApp");
+        ObjectName beanName = new ObjectName("org.datadog.jmxfetch.test:type=ArrayApp");
+
+        JMXComplexAttribute attribute = new JMXComplexAttribute(getAttributeInfo(beanName, "Items"),
+                new BeanDescriptor(beanName, "jmx_test_instance", null, false), new CountingConnection(), new AttributeRegistry());
+        Configuration conf = getDomainConfiguration("org.datadog.jmxfetch.test");
+        assertTrue(attribute.match(conf));
+        attribute.setMatchingConf(conf);
+
+        MetricBatch metrics = collect(attribute);
+        assertEquals(3, metrics.size());
+        HashSet<Double> values = new HashSet<Double>();
+        for (int i = 0; i < metrics.size(); i++) {
+            values.add(metrics.getValue(i));
+        }
+        assertEquals(new HashSet<Double>(Arrays.asList(1.0, 2.0, 3.0)), values);
+
+        // An array that shrank fails the collection of the attribute, before reporting any of its items
+        arrayApp.items = new long[]{4, 5};
+        metrics = new MetricBatch(attribute.getRegistry());
+        try {
+            attribute.collect(metrics);
+            fail("Collected items that are out of the array");
+        } catch (NumberFormatException e) {
+            assertEquals(0, metrics.size());
+        }
+
+        // The items collected are still the first ones of a longer array
+        arrayApp.items = new long[]{7, 8, 9, 10};
+        metrics = collect(attribute);
+        assertEquals(3, metrics.size());
+        values.clear();
+        for (int i = 0; i < metrics.size(); i++) {
+            values.add(metrics.getValue(i));
+        }
+        assertEquals(new HashSet<Double>(Arrays.asList(7.0, 8.0, 9.0)), values);
+    }
+
+    @Test
+    public void testMatchingReadsNoAttribute() throws Exception {
+        // The keys of a composite attribute are described by its open type
+        ObjectName memoryName = new ObjectName("java.lang:type=Memory");
+        CountingConnection connection = new CountingConnection();
+        JMXComplexAttribute composite = new JMXComplexAttribute(getAttributeInfo(memoryName, "HeapMemoryUsage"),
+                new BeanDescriptor(memoryName, "jmx_test_instance", null, false), connection, new AttributeRegistry());
+        Configuration conf = getDomainConfiguration("java.lang");
+        assertTrue(composite.match(conf));
+        composite.setMatchingConf(conf);
+        assertTrue(composite.isMetricsCountKnown());
+        assertEquals(4, composite.getMetricsCount());
+        assertEquals(0, connection.getAttributeCount);
+
+        // The size of a map is learned on its first read
+        SimpleTestJavaApp testApp = new SimpleTestJavaApp();
+        testApp.populateHashMap(90);
+        registerMBean(testApp, "org.datadog.jmxfetch.test:type=AttributeReads");
+        ObjectName beanName = new ObjectName("org.datadog.jmxfetch.test:type=AttributeReads");
+        JMXComplexAttribute map = new JMXComplexAttribute(getAttributeInfo(beanName, "Hashmap"),
+                new BeanDescriptor(beanName, "jmx_test_instance", null, false), connection, new AttributeRegistry());
+        conf = getDomainConfiguration("org.datadog.jmxfetch.test");
+        assertTrue(map.match(conf));
+        map.setMatchingConf(conf);
+        assertFalse(map.isMetricsCountKnown());
+        assertEquals(0, connection.getAttributeCount);
+
+        assertEquals(93, collect(map).size());
+        assertTrue(map.isMetricsCountKnown());
+        assertEquals(93, map.getMetricsCount());
+        assertEquals(1, connection.getAttributeCount);
+    }
+
+    @Test
+    public void testPrefetchedValueIsNotReadAgain() throws Exception {
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=AttributeReads");
+        ObjectName beanName = new ObjectName("org.datadog.jmxfetch.test:type=AttributeReads");
+
+        CountingConnection connection = new CountingConnection();
+        JMXSimpleAttribute attribute = new JMXSimpleAttribute(getAttributeInfo(beanName, "ShouldBe100"),
+                new BeanDescriptor(beanName, "jmx_test_instance", null, false), connection, new AttributeRegistry(), false);
+        Configuration conf = getDomainConfiguration("org.datadog.jmxfetch.test");
+        assertTrue(attribute.match(conf));
+        attribute.setMatchingConf(conf);
+
+        // A value handed over by a bulk read is used as is
+        attribute.setPrefetchedValue(42);
+        assertEquals(42.0, collect(attribute).getValue(0), 0);
+        assertEquals(0, connection.getAttributeCount);
+
+        // Once cleared, the attribute reads its value again
+        attribute.clearPrefetchedValue();
+        assertEquals(100.0, collect(attribute).getValue(0), 0);
+        assertEquals(1, connection.getAttributeCount);
+    }
+
+    @Test
+    public void testHungCallTimesOut() throws Exception {
+        registerMBean(new SlowApp(), "org.datadog.jmxfetch.test:type=SlowApp");
+        ObjectName beanName = new ObjectName("org.datadog.jmxfetch.test:type=SlowApp");
+
+        LinkedHashMap<String, Object> connectionParams = new LinkedHashMap<String, Object>();
+        connectionParams.put("process_name_regex", ".*surefire.*");
+        connectionParams.put(Connection.CALL_TIMEOUT, 200);
+        Connection connection = new AttachApiConnection(connectionParams);
+        try {
+            long start = System.currentTimeMillis();
+            try {
+                connection.getAttribute(beanName, "Slow");
+                fail("The call should have timed out");
+            } catch (JMXCallTimeoutException e) {
+                assertTrue(System.currentTimeMillis() - start < 2000);
+            }
+
+            // The connector has been recycled and is still usable
+            assertEquals(1, connection.getAttribute(beanName, "Fast"));
+
+            // A bulk read that hangs is reported with the attributes it reads
+            try {
+                connection.getAttributes(beanName, new String[]{"Fast", "Slow"});
+                fail("The call should have timed out");
+            } catch (JMXCallTimeoutException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(beanName + ", [Fast, Slow]"));
+            }
+            assertEquals(1, connection.getAttribute(beanName, "Fast"));
+        } finally {
+            connection.closeConnector();
+        }
+    }
+
+    @Test
+    public void testCollectionBudget() throws Exception {
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=LowPriority");
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=HighPriority");
+
+        // With no budget at all, a single bean is read per collection
+        initApplication("jmx_collection_budget.yaml");
+
+        // The high priority attribute is read first
+        run();
+        LinkedList<HashMap<String, Object>> metrics = getMetrics();
+        assertEquals(1, metrics.size());
+        assertEquals("high.priority", metrics.getFirst().get("name"));
+
+        // The deferred attribute is read first in the next collection
+        run();
+        metrics = getMetrics();
+        assertEquals(1, metrics.size());
+        assertEquals("low.priority", metrics.getFirst().get("name"));
+
+        run();
+        metrics = getMetrics();
+        assertEquals(1, metrics.size());
+        assertEquals("high.priority", metrics.getFirst().get("name"));
+    }
+
+    @Test
+    public void testFailingAttributesAreQuarantined() throws Exception {
+        FlakyApp flakyApp = new FlakyApp();
+        registerMBean(flakyApp, "org.datadog.jmxfetch.test:type=FlakyApp");
+        initApplication("jmx_quarantine.yaml", "--check_period", "1000");
+
+        // The failing attributes don't prevent the others from being collected, nor break the instance
+        for (int i = 0; i < 2; i++) {
+            run();
+            LinkedList<HashMap<String, Object>> metrics = getMetrics();
+            assertEquals(1, metrics.size());
+            assertEquals("fine", metrics.getFirst().get("name"));
+            assertEquals(1, app.getInstances().size());
+        }
+
+        // Having failed twice in a row, the Flaky attribute is skipped for a check period
+        flakyApp.failing = false;
+        run();
+        assertEquals(1, getMetrics().size());
+
+        // Then retried
+        Thread.sleep(1100);
+        run();
+        assertEquals(2, getMetrics().size());
+    }
+
+    @Test
+    public void testMBeanInfoIsSharedByClass() throws Exception {
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=MBeanInfoCache,name=first");
+        registerMBean(new SimpleTestJavaApp(), "org.datadog.jmxfetch.test:type=MBeanInfoCache,name=second");
+
+        LinkedHashMap<String, Object> connectionParams = new LinkedHashMap<String, Object>();
+        connectionParams.put("process_name_regex", ".*surefire.*");
+        Connection connection = new AttachApiConnection(connectionParams);
+        try {
+            Set<ObjectInstance> beans = connection.queryMBeans(new ObjectName("org.datadog.jmxfetch.test:type=MBeanInfoCache,*"));
+            assertEquals(2, beans.size());
+
+            // The second bean of the class is described from the cache
+            MBeanAttributeInfo[] attributes = null;
+            for (ObjectInstance bean : beans) {
+                assertEquals(SimpleTestJavaApp.class.getName(), bean.getClassName());
+                MBeanAttributeInfo[] beanAttributes = connection.getAttributesForBean(bean.getObjectName(), bean.getClassName());
+                if (attributes != null) {
+                    assertSame(attributes, beanAttributes);
+                }
+                attributes = beanAttributes;
+            }
+        } finally {
+            connection.closeConnector();
+        }
+    }
+}
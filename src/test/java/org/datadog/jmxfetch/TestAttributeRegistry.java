@@ -0,0 +1,84 @@
+package org.datadog.jmxfetch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestAttributeRegistry {
+
+    @Test
+    public void testTagsAreShared() {
+        AttributeRegistry registry = new AttributeRegistry();
+        int first = registry.allocate("jvm.heap.used", "gauge", new String[]{"instance:jvm", new String("type:Memory")});
+        int second = registry.allocate("jvm.heap.max", "gauge", new String[]{"instance:jvm", new String("type:Memory")});
+
+        assertNotEquals(first, second);
+        assertSame(registry.getTags(first), registry.getTags(second));
+        assertArrayEquals(new String[]{"instance:jvm", "type:Memory"}, registry.getTags(first));
+        assertSame(registry.getMetricType(first), registry.getMetricType(second));
+        assertEquals("jvm.heap.used", registry.getAlias(first));
+        assertEquals("jvm.heap.max", registry.getAlias(second));
+
+        // "gauge", the two aliases, the two tags and the tag list
+        assertEquals(6, registry.getInternedCount());
+    }
+
+    @Test
+    public void testReleasedSlotsAreReused() {
+        AttributeRegistry registry = new AttributeRegistry();
+        String[] tags = new String[]{"instance:jvm"};
+        int kept = registry.allocate("kept", "gauge", tags);
+        int released = registry.allocate("released", "counter", new String[]{"instance:jvm", "name:released"});
+        registry.setValue(released, 42, 1000);
+        assertEquals(42, registry.getValue(released), 0);
+        assertEquals(1000, registry.getValueTime(released));
+
+        // The strings and tags only used by the released metric are freed
+        registry.release(released);
+        assertEquals(1, registry.size());
+        assertEquals(4, registry.getInternedCount());
+
+        // Its slot is reused, without its value
+        assertEquals(released, registry.allocate("other", "gauge", tags));
+        assertTrue(Double.isNaN(registry.getValue(released)));
+        assertEquals("kept", registry.getAlias(kept));
+        assertSame(registry.getTags(kept), registry.getTags(released));
+    }
+
+    @Test
+    public void testRates() {
+        AttributeRegistry registry = new AttributeRegistry();
+        int slot = registry.allocate("requests", "counter", new String[]{"instance:jvm"});
+
+        // A rate needs two samples
+        assertTrue(Double.isNaN(registry.updateRate(slot, 100, 1000)));
+        assertEquals(50, registry.updateRate(slot, 150, 2000), 0);
+        assertEquals(20, registry.updateRate(slot, 160, 2500), 0);
+
+        // The samples of a released slot are not used by the next metric of the slot
+        registry.release(slot);
+        assertEquals(slot, registry.allocate("errors", "counter", new String[]{"instance:jvm"}));
+        assertTrue(Double.isNaN(registry.updateRate(slot, 10, 3000)));
+
+        // Nor across a restart of the JVM
+        registry.clearRates();
+        assertTrue(Double.isNaN(registry.updateRate(slot, 0, 4000)));
+        assertEquals(2, registry.updateRate(slot, 2, 5000), 0);
+    }
+
+    @Test
+    public void testGrowth() {
+        AttributeRegistry registry = new AttributeRegistry();
+        for (int i = 0; i < 1000; i++) {
+            int slot = registry.allocate("metric." + i, "gauge", new String[]{"instance:jvm", "index:" + i});
+            assertEquals(i, slot);
+            registry.setValue(slot, i, i);
+        }
+        assertEquals(1000, registry.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("metric." + i, registry.getAlias(i));
+            assertEquals("index:" + i, registry.getTags(i)[1]);
+            assertEquals(i, registry.getValue(i), 0);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.datadog.jmxfetch;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.*;
+
+public class TestBeanDescriptor {
+
+    private static String getTag(String[] tags, String prefix) {
+        for (String tag : tags) {
+            if (tag.startsWith(prefix)) {
+                return tag;
+            }
+        }
+        fail("No tag starting with " + prefix + " in " + Arrays.toString(tags));
+        return null;
+    }
+
+    @Test
+    public void testTagsAreInternedAcrossInstances() throws Exception {
+        LinkedHashMap<String, String> instanceTags = new LinkedHashMap<String, String>();
+        instanceTags.put("env", "test");
+        BeanDescriptor first = new BeanDescriptor(new ObjectName("org.datadog.jmxfetch.test:type=Cache,host=localhost"),
+                "first", instanceTags, false);
+        BeanDescriptor second = new BeanDescriptor(new ObjectName("org.datadog.jmxfetch.test:type=Cache,host=localhost"),
+                "second", null, false);
+
+        assertEquals("org.datadog.jmxfetch.test", first.getDomain());
+        assertEquals("Cache", first.getParameters().get("type"));
+        assertEquals(new HashSet<String>(Arrays.asList("instance:first", "jmx_domain:org.datadog.jmxfetch.test",
+                "type:Cache", "bean_host:localhost", "env:test")), new HashSet<String>(Arrays.asList(first.getTags(false))));
+
+        // The tags common to the beans are the same strings, whatever the instance
+        assertSame(getTag(first.getTags(false), "type:"), getTag(second.getTags(false), "type:"));
+        assertSame(getTag(first.getTags(false), "jmx_domain:"), getTag(second.getTags(false), "jmx_domain:"));
+        assertSame(getTag(first.getTags(false), "bean_host:"), getTag(second.getTags(false), "bean_host:"));
+    }
+
+    @Test
+    public void testCassandraTags() throws Exception {
+        ObjectName beanName = new ObjectName("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency");
+        BeanDescriptor aliased = new BeanDescriptor(beanName, "cassandra", null, true);
+        assertTrue(aliased.isCassandraAliased());
+        assertEquals(new HashSet<String>(Arrays.asList("instance:cassandra", "jmx_domain:org.apache.cassandra.metrics",
+                "type:ColumnFamily", "keyspace:ks", "ColumnFamily:tbl")), new HashSet<String>(Arrays.asList(aliased.getTags(true))));
+
+        // The attributes that are not aliased keep the bean parameters as tags
+        assertEquals(6, aliased.getTags(false).length);
+        assertFalse(new BeanDescriptor(beanName, "cassandra", null, false).isCassandraAliased());
+    }
+
+    @Test
+    public void testChartPrefixes() throws Exception {
+        BeanDescriptor bean = new BeanDescriptor(
+                new ObjectName("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=Tbl,name=ReadLatency"),
+                "cassandra", null, false);
+        assertEquals("org.apache.cassandra.metrics.columnfamily.tbl", bean.getChartFamily());
+        assertEquals("org.apache.cassandra.metrics.readlatency", bean.getChartTitlePrefix());
+        assertEquals("org.apache.cassandra.metrics.columnfamily.tbl-org.apache.cassandra.metrics.readlatency", bean.getChartIdPrefix());
+        assertEquals("columnfamily.tbl.readlatency", bean.getChartNamePrefix());
+
+        // A bean without any of the chart properties
+        bean = new BeanDescriptor(new ObjectName("org.datadog.jmxfetch.test:key=value"), "test", null, false);
+        assertEquals("org.datadog.jmxfetch.test", bean.getChartFamily());
+        assertEquals("", bean.getChartNamePrefix());
+    }
+}
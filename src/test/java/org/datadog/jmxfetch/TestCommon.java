@@ -77,13 +77,16 @@ public class TestCommon {
     /**
      * Init JMXFetch with the given YAML configuration file.
      */
-    protected void initApplication(String yamlFileName){
+    protected void initApplication(String yamlFileName, String... extraParams){
         // We do a first collection
         // We initialize the main app that will collect these metrics using JMX
         String confdDirectory = Thread.currentThread().getContextClassLoader().getResource(yamlFileName).getPath();
         confdDirectory = new String(confdDirectory.substring(0, confdDirectory.length() - yamlFileName.length()));
-        String[] params = {"--reporter", "console", "-c", yamlFileName, "--conf_directory", confdDirectory, "collect"};
-        new JCommander(appConfig, params);
+        ArrayList<String> params = new ArrayList<String>(Arrays.asList("--reporter", "console", "-c", yamlFileName, "--conf_directory", confdDirectory));
+        params.addAll(Arrays.asList(extraParams));
+        params.add("collect");
+        new JCommander(appConfig, params.toArray(new String[0]));
+        ((ConsoleReporter) appConfig.getReporter()).setRecordingMetrics(true);
 
         app = new App(appConfig);
         app.init(false);
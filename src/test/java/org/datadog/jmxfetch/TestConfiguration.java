@@ -6,11 +6,15 @@ import java.io.FileNotFoundException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Set;
 
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -169,4 +173,175 @@ public class TestConfiguration {
 		// Domain name with parameters
 		assertEquals((String) beanScopeToString.invoke(null, "org.datadog.com", beanScope), "org.datadog.com:type=someType,param=someParam,*");
 	}
+
+	/**
+	 * Match beans against the domain and bean filters, before any of their attributes is known
+	 */
+	@Test
+	public void testBeanFilters() throws Exception {
+		LinkedHashMap<String, Object> include = new LinkedHashMap<String, Object>();
+		include.put("domain", "org.apache.cassandra.metrics");
+		include.put("type", "ColumnFamily");
+		ArrayList<String> beanRegexes = new ArrayList<String>();
+		beanRegexes.add(".*keyspace=.*");
+		include.put("bean_regex", beanRegexes);
+		LinkedHashMap<String, Object> exclude = new LinkedHashMap<String, Object>();
+		exclude.put("keyspace", "system");
+		LinkedHashMap<String, Object> conf = new LinkedHashMap<String, Object>();
+		conf.put("include", include);
+		conf.put("exclude", exclude);
+		Configuration configuration = new Configuration(conf);
+
+		String[][] beans = {
+				{"org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=table,name=TotalDiskSpaceUsed", "true"},
+				{"org.apache.cassandra.metrics:type=ColumnFamily,keyspace=system,scope=peers,name=TotalDiskSpaceUsed", "false"},
+				{"org.apache.cassandra.metrics:type=ColumnFamily,name=TotalDiskSpaceUsed", "false"},
+				{"org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency", "false"},
+				{"org.apache.cassandra.db:type=ColumnFamily,keyspace=ks,scope=table", "false"},
+		};
+		for (String[] bean : beans) {
+			ObjectName name = new ObjectName(bean[0]);
+			assertEquals(bean[0], Boolean.valueOf(bean[1]), JMXAttribute.matchBeanFilters(configuration, name.getDomain(), bean[0], name.getKeyPropertyList()));
+		}
+	}
+
+	private static Configuration getIncludeConfiguration(Object... keyValues) {
+		LinkedHashMap<String, Object> include = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			include.put((String) keyValues[i], keyValues[i + 1]);
+		}
+		LinkedHashMap<String, Object> conf = new LinkedHashMap<String, Object>();
+		conf.put("include", include);
+		return new Configuration(conf);
+	}
+
+	/**
+	 * The configuration index returns the configurations matching a bean, in the configuration order
+	 */
+	@Test
+	public void testConfigurationIndex() throws Exception {
+		ArrayList<String> types = new ArrayList<String>();
+		types.add("ClientRequest");
+		types.add("Storage");
+		Configuration clientRequests = getIncludeConfiguration("domain", "org.apache.cassandra.metrics", "type", "ClientRequest", "scope", "Read");
+		Configuration anyDomain = getIncludeConfiguration("type", types);
+		Configuration tables = getIncludeConfiguration("domain", "org.apache.cassandra.metrics", "bean_regex", ".*keyspace=.*");
+		Configuration otherDomain = getIncludeConfiguration("domain", "org.apache.cassandra.db", "type", "ClientRequest");
+		LinkedList<Configuration> configurationList = new LinkedList<Configuration>();
+		configurationList.add(clientRequests);
+		configurationList.add(anyDomain);
+		configurationList.add(tables);
+		configurationList.add(otherDomain);
+		ConfigurationIndex index = new ConfigurationIndex(configurationList);
+
+		String bean = "org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency";
+		assertEquals(Arrays.asList(clientRequests, anyDomain), index.getBeanConfigurations("org.apache.cassandra.metrics", bean, new ObjectName(bean).getKeyPropertyList()));
+
+		bean = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=table,name=TotalDiskSpaceUsed";
+		assertEquals(Arrays.asList(tables), index.getBeanConfigurations("org.apache.cassandra.metrics", bean, new ObjectName(bean).getKeyPropertyList()));
+
+		bean = "org.apache.cassandra.db:type=Storage";
+		assertEquals(Arrays.asList(anyDomain), index.getBeanConfigurations("org.apache.cassandra.db", bean, new ObjectName(bean).getKeyPropertyList()));
+
+		bean = "org.apache.cassandra.db:type=Caches";
+		assertTrue(index.getBeanConfigurations("org.apache.cassandra.db", bean, new ObjectName(bean).getKeyPropertyList()).isEmpty());
+	}
+
+	/**
+	 * Bean regexes looking for a literal are matched as plain substring searches, with the same result
+	 */
+	@Test
+	public void testBeanRegexLiteralFastPath() {
+		String[] regexes = {".*keyspace=.*", ".*type=Caches.*", ".*keyspace=(ks1|ks2),.*", "org.apache.*"};
+		String[] beans = {"org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks1,scope=table",
+				"org.apache.cassandra.db:type=Caches", "org.datadog:type=Other"};
+		for (String regex : regexes) {
+			Filter.BeanRegex beanRegex = new Filter.BeanRegex(regex);
+			for (String bean : beans) {
+				assertEquals(regex + " " + bean, bean.matches(regex), beanRegex.matches(bean));
+			}
+		}
+	}
+
+	/**
+	 * Plan narrow bean scopes, still covering every bean matching the configuration
+	 */
+	@Test
+	public void testBeanScopes() throws Exception {
+		LinkedList<String> beanScopes = Configuration.getBeanScopes(configurations);
+
+		// One scope per combination of parameter values, rather than the much broader 'org.datadog.jmxfetch.test:scope=sameScope,*'
+		assertEquals(3, beanScopes.size());
+		LinkedList<ObjectName> scopes = new LinkedList<ObjectName>();
+		for (String beanScope : beanScopes) {
+			scopes.add(new ObjectName(beanScope));
+		}
+
+		String[][] beans = {
+				{"org.datadog.jmxfetch.test:scope=sameScope,type=sameType,param=sameParam,additional=additionalParam", "true"},
+				{"org.datadog.jmxfetch.test:scope=sameScope,type=notTheSameType,param=sameParam", "true"},
+				{"org.datadog.jmxfetch.test:scope=sameScope,param=notTheSameParam,type=sameType", "true"},
+				{"org.datadog.jmxfetch.test:scope=sameScope,type=otherType,param=sameParam", "false"},
+				{"org.datadog.jmxfetch.test:scope=otherScope,type=sameType,param=sameParam", "false"},
+		};
+		for (String[] bean : beans) {
+			boolean inScope = false;
+			for (ObjectName scope : scopes) {
+				inScope |= scope.apply(new ObjectName(bean[0]));
+			}
+			assertEquals(bean[0], Boolean.valueOf(bean[1]), inScope);
+		}
+	}
+
+	/**
+	 * The bean query evaluated by the server accepts every bean matched by the configuration, and rejects
+	 * the beans that are not included, or excluded by a bean parameter
+	 */
+	@Test
+	public void testBeanQuery() throws Exception {
+		ArrayList<String> scopes = new ArrayList<String>();
+		scopes.add("Read");
+		scopes.add("Write");
+		Configuration clientRequests = getIncludeConfiguration("domain", "org.apache.cassandra.metrics", "type", "ClientRequest", "scope", scopes);
+		LinkedHashMap<String, Object> include = new LinkedHashMap<String, Object>();
+		include.put("domain", "org.apache.cassandra.metrics");
+		include.put("type", "ColumnFamily");
+		include.put("bean_regex", ".*name=Live.*");
+		LinkedHashMap<String, Object> exclude = new LinkedHashMap<String, Object>();
+		exclude.put("keyspace", "system");
+		LinkedHashMap<String, Object> conf = new LinkedHashMap<String, Object>();
+		conf.put("include", include);
+		conf.put("exclude", exclude);
+		Configuration tables = new Configuration(conf);
+		LinkedList<Configuration> configurationList = new LinkedList<Configuration>();
+		configurationList.add(clientRequests);
+		configurationList.add(tables);
+
+		QueryExp query = Configuration.getBeanQuery(configurationList);
+		assertNotNull(query);
+
+		String[][] beans = {
+				{"org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency", "true"},
+				{"org.apache.cassandra.metrics:type=ClientRequest,scope=Write,name=Latency", "true"},
+				{"org.apache.cassandra.metrics:type=ClientRequest,scope=CASRead,name=Latency", "false"},
+				{"org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=table,name=LiveSSTableCount", "true"},
+				// The bean regex is left to the agent
+				{"org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=table,name=TotalDiskSpaceUsed", "true"},
+				{"org.apache.cassandra.metrics:type=ColumnFamily,keyspace=system,scope=table,name=LiveSSTableCount", "false"},
+				{"org.apache.cassandra.db:type=ClientRequest,scope=Read,name=Latency", "false"},
+		};
+		for (String[] bean : beans) {
+			ObjectName name = new ObjectName(bean[0]);
+			boolean matched = false;
+			for (Configuration configuration : configurationList) {
+				matched |= JMXAttribute.matchBeanFilters(configuration, name.getDomain(), bean[0], name.getKeyPropertyList());
+			}
+			assertEquals(bean[0], Boolean.valueOf(bean[1]), query.apply(name));
+			assertTrue(bean[0], !matched || query.apply(name));
+		}
+
+		// A configuration that may match any bean disables the query
+		configurationList.add(getIncludeConfiguration("bean_regex", ".*Latency.*"));
+		assertNull(Configuration.getBeanQuery(configurationList));
+	}
 }
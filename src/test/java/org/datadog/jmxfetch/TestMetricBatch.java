@@ -0,0 +1,178 @@
+package org.datadog.jmxfetch;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.datadog.jmxfetch.reporter.ConsoleReporter;
+import org.junit.Test;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.*;
+
+public class TestMetricBatch {
+
+    private static Configuration getConfiguration(String metricType) {
+        LinkedHashMap<String, Object> include = new LinkedHashMap<String, Object>();
+        include.put("domain", "org.datadog.jmxfetch.test");
+        LinkedHashMap<String, Object> attributeConf = new LinkedHashMap<String, Object>();
+        attributeConf.put("metric_type", metricType);
+        LinkedHashMap<String, Object> attribute = new LinkedHashMap<String, Object>();
+        attribute.put("ShouldBe100", attributeConf);
+        include.put("attribute", attribute);
+        LinkedHashMap<String, Object> yaml = new LinkedHashMap<String, Object>();
+        yaml.put("include", include);
+        return new Configuration(yaml);
+    }
+
+    /**
+     * @return      an attribute per value, of a bean named after the metric type and the index of the value
+     */
+    private static ArrayList<JMXAttribute> createAttributes(AttributeRegistry registry, String metricType, Object... values)
+            throws Exception {
+        Configuration conf = getConfiguration(metricType);
+        MBeanAttributeInfo attributeInfo = new MBeanAttributeInfo("ShouldBe100", "int", null, true, false, false);
+        ArrayList<JMXAttribute> attributes = new ArrayList<JMXAttribute>();
+        for (int i = 0; i < values.length; i++) {
+            BeanDescriptor bean = new BeanDescriptor(new ObjectName("org.datadog.jmxfetch.test:type=Metrics,name=" + metricType + i),
+                    "jmx_test_instance", null, false);
+            // The values are handed over as if read in bulk, no bean is read
+            JMXAttribute attribute = new JMXSimpleAttribute(attributeInfo, bean, null, registry, false);
+            assertTrue(attribute.match(conf));
+            attribute.setMatchingConf(conf);
+            attribute.setPrefetchedValue(values[i]);
+            attributes.add(attribute);
+        }
+        return attributes;
+    }
+
+    private static void collect(ArrayList<JMXAttribute> attributes, MetricBatch metrics) throws Exception {
+        metrics.clear();
+        for (int i = 0; i < attributes.size(); i++) {
+            attributes.get(i).collect(metrics);
+        }
+    }
+
+    @Test
+    public void testReportedLines() throws Exception {
+        Object[] values = new Object[]{0, -0.0, 1.5, -2.25, 0.0078125, 123456.789, 1e-7, 3e12};
+        AttributeRegistry registry = new AttributeRegistry();
+        ArrayList<JMXAttribute> attributes = createAttributes(registry, "gauge", values);
+        MetricBatch metrics = new MetricBatch(registry);
+        collect(attributes, metrics);
+        assertEquals(values.length, metrics.size());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, true));
+        try {
+            new ConsoleReporter().sendMetrics(metrics, "jmx_test_instance");
+        } finally {
+            System.setOut(stdout);
+        }
+
+        // A chart per simple attribute, whose values are written like String.format("%10f") does
+        String[] lines = output.toString().split("\n");
+        assertEquals(3 * values.length, lines.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("BEGIN org.datadog.jmxfetch.test.metrics-org.datadog.jmxfetch.test.gauge" + i + ".shouldbe100", lines[3 * i]);
+            assertEquals("SET org.datadog.jmxfetch.test.gauge" + i + ".shouldbe100 = "
+                    + String.format("%10f", (float) ((Number) values[i]).doubleValue()), lines[3 * i + 1]);
+            assertEquals("END", lines[3 * i + 2]);
+        }
+    }
+
+    @Test
+    public void testRates() throws Exception {
+        AttributeRegistry registry = new AttributeRegistry();
+        ArrayList<JMXAttribute> attributes = createAttributes(registry, "counter", 100);
+        MetricBatch metrics = new MetricBatch(registry);
+        ConsoleReporter reporter = new ConsoleReporter();
+        reporter.setRecordingMetrics(true);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, true));
+        try {
+            // The first collection of a counter has no rate, its chart is updated without any value
+            collect(attributes, metrics);
+            long firstTime = metrics.getTime(0);
+            reporter.sendMetrics(metrics, "jmx_test_instance");
+            assertEquals(0, reporter.getMetrics().size());
+            assertEquals("BEGIN org.datadog.jmxfetch.test.metrics-org.datadog.jmxfetch.test.counter0.shouldbe100\nEND\n",
+                    output.toString());
+
+            Thread.sleep(10);
+            attributes.get(0).setPrefetchedValue(300);
+            collect(attributes, metrics);
+            reporter.sendMetrics(metrics, "jmx_test_instance");
+            assertEquals(1000.0 * 200 / (metrics.getTime(0) - firstTime), reporter.getMetrics().getFirst().get("value"));
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    @Test
+    public void testNoAllocationOnceWarm() throws Exception {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+        long threadId = Thread.currentThread().getId();
+
+        Object[] values = new Object[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (double) i;
+        }
+        AttributeRegistry registry = new AttributeRegistry();
+        ArrayList<JMXAttribute> attributes = createAttributes(registry, "gauge", values);
+        attributes.addAll(createAttributes(registry, "counter", values));
+        MetricBatch metrics = new MetricBatch(registry);
+        ConsoleReporter reporter = new ConsoleReporter();
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        // The collection message is not what is measured
+        Logger logger = Logger.getLogger(App.class.getName());
+        Level level = logger.getLevel();
+        logger.setLevel(Level.WARN);
+        try {
+            // The first collections allocate the slots, their output and the arrays of the batch
+            for (int cycle = 0; cycle < 2000; cycle++) {
+                collect(attributes, metrics);
+                reporter.sendMetrics(metrics, "jmx_test_instance");
+            }
+
+            int cycles = 1000;
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int cycle = 0; cycle < cycles; cycle++) {
+                collect(attributes, metrics);
+                reporter.sendMetrics(metrics, "jmx_test_instance");
+            }
+            long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+            assertTrue("Allocated " + allocated + " bytes in " + cycles + " collections of " + attributes.size() + " metrics",
+                    allocated / cycles < 16);
+        } finally {
+            logger.setLevel(level);
+            System.setOut(stdout);
+        }
+    }
+}
@@ -87,6 +87,31 @@ public class TestServiceChecks extends TestCommon {
         assertTrue(Arrays.asList(scTags).contains("instance:jmx_test_instance"));
     }
 
+    @Test
+    public void testServiceCheckWarningFromMapAttributes() throws Exception {
+        // Three map attributes counted as one metric each until they are read, whose sizes add up past the limit
+        SimpleTestJavaApp testApp = null;
+        for (String name : new String[]{"first", "second", "third"}) {
+            testApp = new SimpleTestJavaApp();
+            testApp.populateHashMap(30);
+            registerMBean(testApp, "org.datadog.jmxfetch.test:type=MapLimit,name=" + name);
+        }
+        int mapSize = testApp.getHashmap().size();
+
+        initApplication("too_many_map_metrics.yaml");
+
+        // The map reaching the limit is collected, not the one after it
+        for (int i = 0; i < 2; i++) {
+            run();
+            assertEquals(2 * mapSize, getMetrics().size());
+
+            LinkedList<HashMap<String, Object>> serviceChecks = getServiceChecks();
+            assertEquals(1, serviceChecks.size());
+            assertNotNull(serviceChecks.getFirst().get("message"));
+        }
+        assertTrue(app.getInstances().get(0).isLimitReached());
+    }
+
     @Test
     public void testServiceCheckCRITICAL() throws Exception {
         // Test that a non-running service sends a critical service check
@@ -117,10 +142,17 @@ public class TestServiceChecks extends TestCommon {
 
 
         // Test that a CRITICAL service check status is sent on iteration
-        run();
-
-        serviceChecks = getServiceChecks();
-        assertEquals(1, serviceChecks.size());
+        // The instance is reconnected in the background: iterate until the first reconnection attempt failed
+        for (int i = 0; i < 100; i++) {
+            run();
+
+            serviceChecks = getServiceChecks();
+            assertEquals(1, serviceChecks.size());
+            if (((String) serviceChecks.getFirst().get("message")).startsWith(App.CANNOT_CONNECT_TO_INSTANCE)) {
+                break;
+            }
+            Thread.sleep(100);
+        }
 
         sc = serviceChecks.getFirst();
         assertNotNull(sc.get("name"));
@@ -0,0 +1,76 @@
+package org.datadog.jmxfetch;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TestValueExtractor {
+
+    private static void assertNotANumber(ValueExtractor extractor, Object value) {
+        try {
+            extractor.extract(value);
+            fail("Extracted a number from " + value);
+        } catch (NumberFormatException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDeclaredTypes() {
+        assertEquals(42, ValueExtractor.forAttribute("int", null).extract(Integer.valueOf(42)), 0);
+        assertEquals(1L << 40, ValueExtractor.forAttribute("java.lang.Long", null).extract(Long.valueOf(1L << 40)), 0);
+        assertEquals(0.5, ValueExtractor.forAttribute("double", null).extract(0.5), 0);
+        assertEquals(1, ValueExtractor.forAttribute("boolean", null).extract(true), 0);
+        assertEquals(0, ValueExtractor.forAttribute("java.lang.Boolean", null).extract(false), 0);
+        assertEquals(7, ValueExtractor.forAttribute("java.util.concurrent.atomic.AtomicLong", null).extract(new AtomicLong(7)), 0);
+        assertEquals(2.5, ValueExtractor.forAttribute("java.math.BigDecimal", null).extract(new BigDecimal("2.5")), 0);
+        assertEquals(12.5, ValueExtractor.forAttribute("java.lang.String", null).extract("12.5"), 0);
+        assertNotANumber(ValueExtractor.forAttribute("java.lang.String", null), "Running");
+
+        // A value of another type than the declared one is converted anyway
+        assertEquals(3, ValueExtractor.forAttribute("int", null).extract(Long.valueOf(3)), 0);
+        assertEquals(1, ValueExtractor.forAttribute("double", null).extract(true), 0);
+        assertEquals(5, ValueExtractor.forAttribute("java.lang.Object", null).extract(new AtomicInteger(5)), 0);
+        assertNotANumber(ValueExtractor.forAttribute("int", null), null);
+        assertNotANumber(ValueExtractor.forAttribute("java.lang.Object", null), new Object());
+
+        // Items of a long[] attribute, read without boxing them
+        assertEquals(9, ValueExtractor.forAttribute("long[]", null).extract(9L), 0);
+    }
+
+    @Test
+    public void testConversionTable() {
+        LinkedHashMap<Object, Object> conversions = new LinkedHashMap<Object, Object>();
+        conversions.put("Running", 1);
+        conversions.put("Stopped", "0");
+        conversions.put("Broken", "not a number");
+        ValueExtractor extractor = ValueExtractor.forAttribute("java.lang.String", conversions);
+
+        assertEquals(1, extractor.extract("Running"), 0);
+        assertEquals(0, extractor.extract("Stopped"), 0);
+        assertNotANumber(extractor, "Broken");
+        // Without a default, an unknown value is not a number, even a numeric one
+        assertNotANumber(extractor, "Starting");
+        assertNotANumber(extractor, "12");
+
+        conversions.put("default", -1);
+        extractor = ValueExtractor.forAttribute("java.lang.String", conversions);
+        assertEquals(-1, extractor.extract("Starting"), 0);
+        assertEquals(-1, extractor.extract(Long.valueOf(12)), 0);
+        assertEquals(1, extractor.extract("Running"), 0);
+
+        // Items of a long[] attribute are looked up like boxed values
+        conversions.put(3L, 30);
+        extractor = ValueExtractor.forAttribute("long[]", conversions);
+        assertEquals(30, extractor.extract(3L), 0);
+        assertEquals(-1, extractor.extract(4L), 0);
+
+        // An empty table doesn't convert anything
+        assertEquals(12, ValueExtractor.forAttribute("java.lang.String", new LinkedHashMap<Object, Object>()).extract("12"), 0);
+    }
+}